@@ -0,0 +1,32 @@
+package ajk.ghcache.config;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+@Configuration
+public class AsyncConfig {
+    @Autowired
+    private GHCacheProperties props;
+
+    @Bean
+    public ThreadPoolTaskExecutor fetchExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("fetch-");
+        executor.setCorePoolSize(props.getFetchThreads());
+        executor.setMaxPoolSize(props.getFetchThreads());
+        executor.setQueueCapacity(props.getFetchQueueSize());
+        return executor;
+    }
+
+    @Bean
+    public ThreadPoolTaskExecutor consulExecutor() {
+        // separate from the fetch threads, the fetches themselves wait for the parts so sharing the pool could deadlock
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix("consul-");
+        executor.setCorePoolSize(props.getConsulThreads());
+        executor.setMaxPoolSize(props.getConsulThreads());
+        return executor;
+    }
+}
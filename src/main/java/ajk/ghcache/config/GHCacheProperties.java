@@ -4,6 +4,8 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import static ajk.ghcache.config.GHCacheProperties.RepoView.ToNumConverter.fromNumber;
@@ -24,9 +26,37 @@ public class GHCacheProperties {
     private String apiToken;
 
     /**
-     * A list of URIs to cache, anything outside this list will be proxied with a simple pass-through
+     * A list of URIs to cache, anything outside this list (and outside the cachePolicies) will be proxied with a simple
+     * pass-through. The URIs may be patterns, where <code>*</code> matches a single path segment and <code>**</code>
+     * matches any number of trailing segments, for example <code>/repos/*&#47;*&#47;pulls</code>. These URIs are cached
+     * with the global cache settings
      */
-    private List<String> cachedUris;
+    private List<String> cachedUris = new ArrayList<>();
+
+    /**
+     * URI patterns to cache with their own cache settings, the patterns use the same syntax as the cachedUris. When
+     * a URI is both in the cachedUris and here, the settings here win
+     */
+    private List<CachePolicy> cachePolicies = new ArrayList<>();
+
+    /**
+     * Maximum number of requested cache keys, other than the literal cached URIs, that are remembered and refreshed
+     * with the cached URIs. These are the paths requested under cache patterns, and requests of cached URIs with query
+     * parameters or key headers. Keys that aren't requested for twice the cacheMinutes are forgotten
+     */
+    private int requestedKeysSize = 10000;
+
+    /**
+     * The request headers that change the GitHub response and are therefore part of the cache key. These headers are
+     * also passed on to GitHub
+     */
+    private List<String> keyHeaders = new ArrayList<>(Collections.singletonList("Accept"));
+
+    /**
+     * Query parameters that don't change the GitHub response, these are dropped from the cache key and aren't passed
+     * on to GitHub
+     */
+    private List<String> ignoredParams = new ArrayList<>();
 
     /**
      * Base URL of the Consul server. The GitHub cache uses the Consul key-value store to store the cached responses
@@ -51,6 +81,30 @@ public class GHCacheProperties {
      */
     private boolean respectGitHubCacheConfig = false;
 
+    /**
+     * A local file to which the node's caches are saved on shutdown and periodically while running. On startup the
+     * node loads this file before it reports healthy, so it doesn't start with empty caches. Leave empty to disable
+     */
+    private String snapshotFile = "ghcache.snapshot";
+
+    /**
+     * The interval in minutes between snapshots of the local caches
+     */
+    private int snapshotMinutes = 5;
+
+    /**
+     * The codec used to compress new responses before they're stored: gzip, deflate-dict-v1 (deflate with a preset
+     * dictionary of GitHub API JSON) or lz4 (only when the lz4 jar is on the classpath). Stored responses record their
+     * codec, so changing this doesn't affect reading the existing ones. In a cluster make sure all nodes support the
+     * codec before switching to it
+     */
+    private String codec = "gzip";
+
+    /**
+     * The compression level (1-9, or -1 for the default) of the gzip and deflate-dict-v1 codecs
+     */
+    private int gzipLevel = -1;
+
     /**
      * A list of views to be fetched periodically and store
      */
@@ -72,6 +126,153 @@ public class GHCacheProperties {
      */
     private int cachedUrisRefreshMinutes = 9;
 
+    /**
+     * The longest TTL in minutes a cached URI can get when its content doesn't change. Each refresh that finds the same
+     * content doubles the TTL up to this limit, and a change brings it back to the regular cache period. Set it to 0 to
+     * always use the regular cache period
+     */
+    private int adaptiveTtlMaxMinutes = 120;
+
+    /**
+     * Number of hot keys - the most requested cache keys - tracked by each node. These are reported by the cachestats
+     * endpoint and refreshed first among keys of the same refresh priority
+     */
+    private int hotKeysSize = 100;
+
+    /**
+     * Number of counters per row of the sketches that estimate the request counts of the keys. More counters use more
+     * memory, but estimate the counts more accurately when there are many different keys
+     */
+    private int hotKeysSketchWidth = 4096;
+
+    /**
+     * The interval in minutes at which the estimated request counts are halved, so they reflect recent traffic
+     */
+    private int hotKeysDecayMinutes = 10;
+
+    /**
+     * Number of recent requests of a pass-through key after which its response is kept in the node's local cache. The
+     * cached URIs are always kept
+     */
+    private int l1AdmissionThreshold = 2;
+
+    /**
+     * The TTL in seconds of each node's Consul session used for the leader election. The session is renewed 3 times per
+     * TTL, if the leader stops renewing it another node takes over once the session expires
+     */
+    private int leaderSessionTtlSeconds = 30;
+
+    /**
+     * Number of threads used to fetch responses that aren't in the local cache. Requests waiting on Consul or GitHub
+     * are parked on these threads so they don't hold the application server's request threads
+     */
+    private int fetchThreads = 64;
+
+    /**
+     * Maximum number of fetches waiting for a free fetch thread, beyond this requests are rejected with 503
+     */
+    private int fetchQueueSize = 1000;
+
+    /**
+     * Maximum number of paths in a single /batch request
+     */
+    private int batchMaxPaths = 100;
+
+    /**
+     * Number of seconds a /batch request waits for its paths, paths that aren't fetched by then are reported with a 504
+     * status
+     */
+    private int batchTimeoutSeconds = 30;
+
+    /**
+     * Number of seconds to cache 404 and 410 responses from GitHub, these are cached for a shorter period than regular
+     * responses because they usually mean the resource is about to be (or was just) created
+     */
+    private int negativeCacheSeconds = 60;
+
+    /**
+     * Number of seconds to remember that GitHub failed for a path (error status or no response at all). During this
+     * time requests for the path aren't sent to GitHub again
+     */
+    private int errorCacheSeconds = 10;
+
+    /**
+     * Maximum total size, in megabytes, of the bodies of the last known good responses kept on each node. These are
+     * served, even if they're stale, when GitHub or Consul fail
+     */
+    private int staleCacheMegabytes = 256;
+
+    /**
+     * Number of consecutive failures of a remote host (GitHub or Consul) after which its circuit breaker opens and
+     * calls to it are no longer made
+     */
+    private int circuitBreakerFailureThreshold = 5;
+
+    /**
+     * Number of seconds a circuit breaker stays open before a single trial call is let through to the remote host
+     */
+    private int circuitBreakerOpenSeconds = 30;
+
+    /**
+     * Size in bytes of the parts that large values are split into in Consul. Consul limits values to 512K, so this
+     * must be below that
+     */
+    private int consulChunkSize = 256 * 1024;
+
+    /**
+     * Number of threads used to read and write the parts of large values in Consul in parallel
+     */
+    private int consulThreads = 16;
+
+    /**
+     * Milliseconds to wait for a connection to GitHub before the call fails
+     */
+    private int remoteConnectTimeoutMillis = 2000;
+
+    /**
+     * Milliseconds to wait for data from GitHub, between any two packets, before the call fails
+     */
+    private int remoteSocketTimeoutMillis = 10000;
+
+    /**
+     * Milliseconds to wait for a connection to Consul before the call fails
+     */
+    private int consulConnectTimeoutMillis = 1000;
+
+    /**
+     * Milliseconds to wait for data from Consul, between any two packets, before the call fails
+     */
+    private int consulSocketTimeoutMillis = 3000;
+
+    @Data
+    public static class CachePolicy {
+        /**
+         * The URI pattern this policy applies to
+         */
+        private String pattern;
+
+        /**
+         * Number of minutes to cache results of this pattern, if left empty the global cacheMinutes is used
+         */
+        private Integer cacheMinutes;
+
+        /**
+         * Whether to respect the GitHub Cache-Control header for this pattern, if left empty the global
+         * respectGitHubCacheConfig is used
+         */
+        private Boolean respectGitHubCacheConfig;
+
+        /**
+         * URIs with a higher priority are refreshed first on every cached URIs refresh
+         */
+        private int refreshPriority = 0;
+
+        /**
+         * Whether to follow the pagination links and flatten the result, if false only the first page is cached
+         */
+        private boolean paginate = true;
+    }
+
     @Data
     public static class RepoView {
         /**
@@ -1,8 +1,13 @@
 package ajk.ghcache.config;
 
+import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Slf4jReporter;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.dropwizard.DropwizardExports;
+import io.prometheus.client.exporter.MetricsServlet;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.web.servlet.ServletRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -24,5 +29,22 @@ public class MetricsConfig {
                 .build();
 
         slf4j.start(1, MINUTES);
+
+        JmxReporter jmx = JmxReporter.forRegistry(metrics())
+                .inDomain("ghcache")
+                .build();
+
+        jmx.start();
+    }
+
+    /**
+     * expose all the metrics in the Prometheus text format under /prometheus
+     */
+    @Bean
+    public ServletRegistrationBean prometheus() {
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(new DropwizardExports(metrics()));
+
+        return new ServletRegistrationBean(new MetricsServlet(registry), "/prometheus");
     }
 }
@@ -1,12 +1,21 @@
 package ajk.ghcache.config;
 
 import ajk.ghcache.services.CacheService;
+import ajk.ghcache.services.HotKeys;
+import ajk.ghcache.services.SnapshotService;
 import ajk.ghcache.services.ViewService;
+import ajk.ghcache.services.cluster.LeaderElection;
+import ajk.ghcache.services.repositories.ResponseRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.SchedulingConfigurer;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.util.concurrent.Executors.newScheduledThreadPool;
+
 @Configuration
 public class SchedulerConfig implements SchedulingConfigurer {
     @Autowired
@@ -18,12 +27,55 @@ public class SchedulerConfig implements SchedulingConfigurer {
     @Autowired
     private CacheService cacheService;
 
+    @Autowired
+    private SnapshotService snapshotService;
+
+    @Autowired
+    private LeaderElection leaderElection;
+
+    @Autowired
+    private HotKeys hotKeys;
+
+    @Autowired
+    private ResponseRepository responseRepository;
+
+    /**
+     * a long refresh must never delay the leadership renewal, so the tasks get their own threads
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ScheduledExecutorService schedulerExecutor() {
+        return newScheduledThreadPool(4);
+    }
+
     @Override
     public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+        taskRegistrar.setScheduler(schedulerExecutor());
+
+        // the refresh tasks run right away and only the leader does the work, so the leadership has to be settled first,
+        // otherwise a fresh cluster would have no views until the next refresh
+        leaderElection.renew();
+
+        // register the leadership session renewal task, renewing 3 times per TTL leaves room for a failed renewal
+        taskRegistrar.addFixedRateTask(() -> leaderElection.renew(), props.getLeaderSessionTtlSeconds() * 1000 / 3);
+
         // register the view refresh task
         taskRegistrar.addFixedRateTask(() -> viewService.cacheViews(), props.getViewRefreshMinutes() * 60 * 1000);
 
-        // register the cached URIs refresh task
-        taskRegistrar.addFixedRateTask(() -> cacheService.rebuild(), props.getCachedUrisRefreshMinutes() * 60 * 1000);
+        // register the cached URIs refresh task. Every node refreshes the keys requested from it, only the leader refreshes
+        // the literal cached URIs, the rest of the nodes read them from Consul
+        taskRegistrar.addFixedRateTask(() -> {
+            boolean leader = leaderElection.isLeader();
+            cacheService.rebuild(leader);
+            if (leader) {
+                // right after the refresh, when the responses point at their newest bodies
+                responseRepository.sweep();
+            }
+        }, props.getCachedUrisRefreshMinutes() * 60 * 1000);
+
+        // register the hot keys decay task
+        taskRegistrar.addFixedRateTask(() -> hotKeys.decay(), props.getHotKeysDecayMinutes() * 60 * 1000);
+
+        // register the local caches snapshot task
+        taskRegistrar.addFixedRateTask(() -> snapshotService.snapshot(), props.getSnapshotMinutes() * 60 * 1000);
     }
 }
@@ -0,0 +1,230 @@
+package ajk.ghcache.controllers;
+
+import ajk.ghcache.config.GHCacheProperties;
+import ajk.ghcache.services.CacheKey;
+import ajk.ghcache.services.CacheKeys;
+import ajk.ghcache.services.CacheService;
+import ajk.ghcache.services.CachedResponse;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.MediaType.APPLICATION_JSON;
+
+@RestController
+public class BatchController {
+    @Autowired
+    private GHCacheProperties props;
+
+    @Autowired
+    private CacheService cache;
+
+    @Autowired
+    private CacheKeys keys;
+
+    @Autowired
+    private ThreadPoolTaskExecutor fetchExecutor;
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    /**
+     * fetch many paths in a single request. The paths are fetched concurrently and the response is a JSON array of
+     * <code>{"path": ..., "status": ..., "body": ...}</code> items, streamed in the order the paths complete. No thread
+     * waits for the batch, every item is written by whichever thread completed its fetch
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<ResponseBodyEmitter> batch(@RequestBody(required = false) List<String> paths,
+                                                     HttpServletResponse response) throws IOException {
+        if (paths == null) {
+            response.sendError(BAD_REQUEST.value(), "the body must be a JSON array of paths");
+            return null;
+        }
+
+        if (paths.size() > props.getBatchMaxPaths()) {
+            response.sendError(BAD_REQUEST.value(), "at most " + props.getBatchMaxPaths() + " paths are allowed in a batch");
+            return null;
+        }
+
+        for (String path : paths) {
+            if (!isValidPath(path)) {
+                // the path itself isn't echoed back, it's whatever the client sent
+                response.sendError(BAD_REQUEST.value(), "invalid path, paths must start with a single /");
+                return null;
+            }
+        }
+
+        // the same resource may be requested more than once, under different spellings even, it's only fetched once
+        Map<CacheKey, List<String>> requested = new LinkedHashMap<>();
+        for (String path : paths) {
+            requested.computeIfAbsent(keys.fromUri(path, header -> null), key -> new LinkedList<>()).add(path);
+        }
+
+        ResponseBodyEmitter emitter = new ResponseBodyEmitter(props.getBatchTimeoutSeconds() * 1000L);
+        Batch batch = new Batch(emitter, new LinkedHashMap<>(requested));
+        // out of time, whatever isn't done yet is reported as timed out
+        emitter.onTimeout(batch::timeOut);
+
+        if (requested.isEmpty()) {
+            batch.finish();
+        }
+        requested.keySet().forEach(key -> resolve(key).whenComplete((result, e) ->
+                batch.complete(key, e == null ? result : null)));
+
+        return ResponseEntity.status(OK).contentType(APPLICATION_JSON).body(emitter);
+    }
+
+    private CompletableFuture<CachedResponse> resolve(CacheKey key) {
+        CachedResponse cached = cache.peek(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        try {
+            return CompletableFuture.supplyAsync(() -> cache.fetch(key, false), fetchExecutor);
+        } catch (TaskRejectedException e) {
+            CompletableFuture<CachedResponse> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    /**
+     * @return the item, as JSON, of a path
+     */
+    private byte[] item(String path, int status, CachedResponse response) throws IOException {
+        ByteArrayOutputStream item = new ByteArrayOutputStream();
+        item.write(("{\"path\":" + mapper.writeValueAsString(path) + ",\"status\":" + status).getBytes(UTF_8));
+
+        if (response != null) {
+            item.write(",\"body\":".getBytes(UTF_8));
+            byte[] body = response.getPrepared().getBody();
+            // the content is already JSON, no need to parse it just to write it again
+            item.write(isJson(response) ? body : mapper.writeValueAsBytes(new String(body, UTF_8)));
+        }
+
+        item.write('}');
+        return item.toByteArray();
+    }
+
+    private boolean isJson(CachedResponse response) {
+        return response.getPrepared().getBody().length > 0 && response.getHeaders().stream()
+                .anyMatch(header -> header.getName().equalsIgnoreCase("content-type") &&
+                        header.getValue().toLowerCase().contains("json"));
+    }
+
+    /**
+     * the paths are appended to the GitHub URL, so anything other than an absolute path (a host, a scheme, user info)
+     * is rejected
+     */
+    private static boolean isValidPath(String path) {
+        if (path == null || !path.startsWith("/") || path.startsWith("//")) {
+            return false;
+        }
+
+        try {
+            URI uri = new URI(path);
+            return uri.getScheme() == null && uri.getRawAuthority() == null;
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * the items of a batch that's being written. The fetches complete on many threads, so the items are written one at a
+     * time
+     */
+    private class Batch {
+        private final ResponseBodyEmitter emitter;
+
+        // the paths of every key that isn't written yet
+        private final Map<CacheKey, List<String>> pending;
+
+        private boolean first = true;
+        private boolean done;
+
+        Batch(ResponseBodyEmitter emitter, Map<CacheKey, List<String>> pending) {
+            this.emitter = emitter;
+            this.pending = pending;
+        }
+
+        synchronized void complete(CacheKey key, CachedResponse response) {
+            List<String> paths = pending.remove(key);
+            if (paths == null || done) {
+                // it was already reported as timed out
+                return;
+            }
+
+            try {
+                for (String path : paths) {
+                    send(item(path, response == null ? 502 : response.getStatusLine().getStatusCode(), response));
+                }
+
+                if (pending.isEmpty()) {
+                    finish();
+                }
+            } catch (IOException e) {
+                abort(e);
+            }
+        }
+
+        synchronized void timeOut() {
+            if (done) {
+                return;
+            }
+
+            try {
+                for (List<String> timedOut : pending.values()) {
+                    for (String path : timedOut) {
+                        send(item(path, 504, null));
+                    }
+                }
+                pending.clear();
+                finish();
+            } catch (IOException e) {
+                abort(e);
+            }
+        }
+
+        synchronized void finish() throws IOException {
+            emitter.send((first ? "[]" : "]").getBytes(UTF_8), APPLICATION_JSON);
+            done = true;
+            emitter.complete();
+        }
+
+        private void send(byte[] item) throws IOException {
+            // the opening bracket goes with the first item
+            ByteArrayOutputStream out = new ByteArrayOutputStream(item.length + 1);
+            out.write(first ? '[' : ',');
+            out.write(item);
+            emitter.send(out.toByteArray(), APPLICATION_JSON);
+            first = false;
+        }
+
+        private void abort(IOException e) {
+            // the client is gone, there's no one to write the rest to
+            done = true;
+            emitter.completeWithError(e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package ajk.ghcache.controllers;
+
+import ajk.ghcache.services.CacheKey;
+import ajk.ghcache.services.CacheService;
+import ajk.ghcache.services.CachedResponse;
+import ajk.ghcache.services.HotKeys;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * The /cachestats management endpoint: the node's hot keys, with their hit ratio, and every response the node holds
+ * with its size, age and time to expiry
+ */
+@Component
+public class CacheStatsEndpoint extends AbstractEndpoint<Map<String, Object>> {
+    @Autowired
+    private CacheService cache;
+
+    @Autowired
+    private HotKeys hotKeys;
+
+    public CacheStatsEndpoint() {
+        super("cachestats");
+    }
+
+    @Override
+    public Map<String, Object> invoke() {
+        List<Map<String, Object>> hot = hotKeys.getTop().stream()
+                .map(hotKey -> {
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    result.put("key", hotKey.getKey().toString());
+                    result.put("hits", hotKey.getHits());
+                    result.put("misses", hotKey.getMisses());
+                    result.put("hitRatio", hotKey.getHitRatio());
+                    return result;
+                })
+                .collect(toList());
+
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> entries = cache.getLastKnownGood().entrySet().stream()
+                .sorted(comparing((Map.Entry<CacheKey, CachedResponse> entry) -> entry.getValue().getPrepared().getBody().length).reversed())
+                .map(entry -> {
+                    CachedResponse response = entry.getValue();
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    result.put("key", entry.getKey().toString());
+                    result.put("status", response.getStatusLine().getStatusCode());
+                    result.put("size", response.getPrepared().getBody().length);
+                    result.put("ageSeconds", response.getCreatedAt() == 0 ? null : (now - response.getCreatedAt()) / 1000);
+                    result.put("expiresInSeconds", (response.getValidUntil() - now) / 1000);
+                    result.put("locallyCached", cache.isLocallyCached(entry.getKey()));
+                    result.put("requests", hotKeys.estimate(entry.getKey()));
+                    return result;
+                })
+                .collect(toList());
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("hotKeys", hot);
+        result.put("entries", entries);
+        return result;
+    }
+}
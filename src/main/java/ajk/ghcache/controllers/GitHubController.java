@@ -1,10 +1,20 @@
 package ajk.ghcache.controllers;
 
+import ajk.ghcache.services.CacheKey;
+import ajk.ghcache.services.CacheKeys;
 import ajk.ghcache.services.CacheService;
 import ajk.ghcache.services.CachedResponse;
+import ajk.ghcache.services.PreparedResponse;
+import ajk.ghcache.services.ProjectionService;
+import ajk.ghcache.services.RankedView;
 import ajk.ghcache.services.ViewService;
+import ajk.ghcache.services.cluster.LeaderElection;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -14,11 +24,18 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
-import static javax.servlet.http.HttpServletResponse.SC_BAD_GATEWAY;
+import static ajk.ghcache.services.ProjectionService.normalize;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.springframework.http.HttpHeaders.IF_NONE_MATCH;
+import static org.springframework.http.HttpStatus.BAD_GATEWAY;
+import static org.springframework.http.HttpStatus.CONFLICT;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.NOT_MODIFIED;
 import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
 
 @RestController
@@ -29,6 +46,18 @@ public class GitHubController {
     @Autowired
     private ViewService view;
 
+    @Autowired
+    private ThreadPoolTaskExecutor fetchExecutor;
+
+    @Autowired
+    private CacheKeys keys;
+
+    @Autowired
+    private ProjectionService projections;
+
+    @Autowired
+    private LeaderElection leaderElection;
+
     private String myHost;
 
     public GitHubController() throws UnknownHostException {
@@ -37,19 +66,27 @@ public class GitHubController {
     }
 
     @DeleteMapping("/view")
-    public void forceRefreshViews() {
-        view.cacheViews();
+    public void forceRefreshViews(HttpServletResponse response) throws IOException {
+        // only the leader refreshes the views, tell the caller where to go instead of pretending we did it
+        if (!view.cacheViews()) {
+            response.sendError(CONFLICT.value(), "not the cluster leader, the leader is " + leaderElection.getLeader());
+        }
     }
 
     @GetMapping(value = "/view/**", produces = APPLICATION_JSON_VALUE)
-    public ResponseEntity<List<Object[]>> view(HttpServletRequest request) {
-        List<Object[]> result = view.getTopN(request.getRequestURI());
+    public void view(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        RankedView.Slice result = view.getTopN(request.getRequestURI());
 
         if (result == null) {
-            return new ResponseEntity<>(NOT_FOUND);
-        } else {
-            return new ResponseEntity<>(result, OK);
+            response.setStatus(NOT_FOUND.value());
+            return;
         }
+
+        // the view is already serialized, there's nothing left for a message converter to do
+        response.setStatus(OK.value());
+        response.setContentType(APPLICATION_JSON_VALUE);
+        response.setContentLength(result.getLength());
+        result.writeTo(response.getOutputStream());
     }
 
     @DeleteMapping("/")
@@ -58,19 +95,71 @@ public class GitHubController {
     }
 
     @GetMapping("/**")
-    public void cache(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    public CompletableFuture<ResponseEntity<byte[]>> cache(HttpServletRequest request) {
         boolean force = "true".equals(request.getParameter("force"));
+        CacheKey key = keys.fromRequest(request);
+        String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+        String fields = request.getParameter("fields") == null ? null : normalize(request.getParameter("fields"));
 
-        CachedResponse fetched = cache.fetch(request.getRequestURI(), force);
+        if (!force) {
+            // local cache hits are answered right away, only misses have to wait for Consul or GitHub
+            CachedResponse cached = cache.peek(key);
+            if (cached != null) {
+                CachedResponse projected = isProjected(cached, fields) ? projections.peek(cached, fields) : cached;
+                if (projected != null) {
+                    return CompletableFuture.completedFuture(toResponseEntity(projected, ifNoneMatch));
+                }
 
+                // a new projection parses the whole response, that's done on a fetch thread just like a miss
+                return async(() -> project(cached, fields), ifNoneMatch);
+            }
+        }
+
+        return async(() -> project(cache.fetch(key, force), fields), ifNoneMatch);
+    }
+
+    /**
+     * release the request thread while we're waiting on the remote calls, the response is written once the fetch thread
+     * is done
+     */
+    private CompletableFuture<ResponseEntity<byte[]>> async(Supplier<CachedResponse> response, String ifNoneMatch) {
+        try {
+            return CompletableFuture
+                    .supplyAsync(response, fetchExecutor)
+                    .thenApply(fetched -> toResponseEntity(fetched, ifNoneMatch));
+        } catch (TaskRejectedException e) {
+            return CompletableFuture.completedFuture(
+                    new ResponseEntity<>("too many pending requests".getBytes(UTF_8), SERVICE_UNAVAILABLE));
+        }
+    }
+
+    private boolean isProjected(CachedResponse response, String fields) {
+        return response != null && fields != null && !fields.isEmpty() && response.getPrepared().getStatusCode() == 200;
+    }
+
+    private CachedResponse project(CachedResponse response, String fields) {
+        return isProjected(response, fields) ? projections.project(response, fields) : response;
+    }
+
+    private ResponseEntity<byte[]> toResponseEntity(CachedResponse fetched, String ifNoneMatch) {
         if (fetched == null) {
-            response.sendError(SC_BAD_GATEWAY, "unable to complete proxy request");
-        } else {
-            fetched.getHeaders().forEach(header -> response.addHeader(header.getName(), header.getValue()));
-            // add our own headers
-            response.setHeader("X-Forwarded-Host", myHost);
-            response.getWriter().print(fetched.getContent());
-            response.setStatus(fetched.getStatusLine().getStatusCode());
+            return new ResponseEntity<>("unable to complete proxy request".getBytes(UTF_8), BAD_GATEWAY);
+        }
+
+        PreparedResponse prepared = fetched.getPrepared();
+        HttpHeaders headers = new HttpHeaders();
+        if (prepared.isNotModified(ifNoneMatch)) {
+            // the client already has this exact content, no need to send it again
+            headers.setETag(prepared.getEtag());
+            headers.set("X-Forwarded-Host", myHost);
+            return new ResponseEntity<>(headers, NOT_MODIFIED);
         }
+
+        prepared.getHeaders().forEach(header -> headers.add(header.getName(), header.getValue()));
+        // add our own headers
+        headers.set("X-Forwarded-Host", myHost);
+
+        // the status, headers and body are written in this order by the framework, so the status is never lost
+        return new ResponseEntity<>(prepared.getBody(), headers, HttpStatus.valueOf(prepared.getStatusCode()));
     }
 }
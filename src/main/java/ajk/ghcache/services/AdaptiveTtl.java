@@ -0,0 +1,79 @@
+package ajk.ghcache.services;
+
+import ajk.ghcache.config.GHCacheProperties;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.AllArgsConstructor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Adapts the TTL of each cached key to how often its content actually changes. Every time a key is fetched from GitHub
+ * its content hash is compared to the previous one: while it stays the same the TTL is doubled, up to the
+ * adaptiveTtlMaxMinutes, and once it changes the TTL goes back to the key's regular validity
+ */
+@Component
+public class AdaptiveTtl {
+    @Autowired
+    private GHCacheProperties props;
+
+    @Autowired
+    private MetricRegistry metrics;
+
+    private Cache<CacheKey, State> states;
+
+    @PostConstruct
+    public void init() {
+        states = CacheBuilder.newBuilder()
+                .maximumSize(props.getRequestedKeysSize())
+                .build();
+    }
+
+    /**
+     * @param key         request key
+     * @param contentHash hash of the content just fetched from GitHub
+     * @param ttl         the regular TTL of the response in milliseconds, by the cache policy or GitHub's max-age
+     * @return the TTL to use for the response in milliseconds, never shorter than the regular one
+     */
+    public long adapt(CacheKey key, String contentHash, long ttl) {
+        long maxTtl = MINUTES.toMillis(props.getAdaptiveTtlMaxMinutes());
+        State previous = states.getIfPresent(key);
+
+        long adapted;
+        if (previous != null && previous.contentHash.equals(contentHash)) {
+            metrics.meter("cache.content-unchanged").mark();
+            adapted = max(ttl, min(previous.ttl * 2, maxTtl));
+        } else {
+            if (previous != null) {
+                metrics.meter("cache.content-changed").mark();
+            }
+            adapted = ttl;
+        }
+
+        states.put(key, new State(contentHash, adapted, System.currentTimeMillis() + adapted));
+        metrics.histogram("cache.adaptive-ttl-seconds").update(adapted / 1000);
+        return adapted;
+    }
+
+    /**
+     * @return true if the last response this node fetched for the key is still valid at the given time
+     */
+    public boolean isValidAt(CacheKey key, long time) {
+        State state = states.getIfPresent(key);
+        return state != null && state.validUntil > time;
+    }
+
+    @AllArgsConstructor
+    private static class State {
+        private String contentHash;
+        private long ttl;
+        private long validUntil;
+    }
+}
@@ -0,0 +1,76 @@
+package ajk.ghcache.services;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import java.io.Serializable;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static com.google.common.hash.Hashing.sha256;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.unmodifiableSortedMap;
+
+/**
+ * Identifies a cached response: the request path, its normalized query string and the values of the request headers
+ * that change the response (for example Accept). Two requests with the same key get the same response. Use
+ * {@link CacheKeys} to build keys from requests
+ */
+@Getter
+@EqualsAndHashCode
+public final class CacheKey implements Serializable {
+    private final String path;
+
+    /**
+     * the normalized query string (parameters sorted), empty if there are no parameters
+     */
+    private final String query;
+
+    /**
+     * the normalized values of the request headers that are part of the key, by lower case header name
+     */
+    private final SortedMap<String, String> headers;
+
+    @JsonCreator
+    public CacheKey(@JsonProperty("path") String path,
+                    @JsonProperty("query") String query,
+                    @JsonProperty("headers") SortedMap<String, String> headers) {
+        this.path = path;
+        this.query = query == null ? "" : query;
+        this.headers = unmodifiableSortedMap(headers == null ? new TreeMap<>() : new TreeMap<>(headers));
+    }
+
+    /**
+     * @param path request path
+     * @return the key of a plain request for the path, without any query parameters or special headers
+     */
+    public static CacheKey of(String path) {
+        return new CacheKey(path, "", null);
+    }
+
+    /**
+     * @return the path and query to request from GitHub
+     */
+    @JsonIgnore
+    public String getUri() {
+        return query.isEmpty() ? path : path + "?" + query;
+    }
+
+    /**
+     * @return a fixed size digest of the key, used where the key itself may be too long or contain unsafe characters
+     */
+    @JsonIgnore
+    public String getDigest() {
+        return sha256().hashString(toString(), UTF_8).toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder(getUri());
+        headers.forEach((name, value) -> result.append(' ').append(name).append('=').append(value));
+        return result.toString();
+    }
+}
@@ -0,0 +1,110 @@
+package ajk.ghcache.services;
+
+import ajk.ghcache.config.GHCacheProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Builds normalized cache keys, so requests that differ only in the order of their query parameters, or in the
+ * spelling of their headers, share a cached response
+ */
+@Component
+public class CacheKeys {
+    // parameters that control the cache itself rather than the GitHub request
+    private static final Set<String> CONTROL_PARAMS = new HashSet<>(Arrays.asList("force", "fields"));
+
+    @Autowired
+    private GHCacheProperties props;
+
+    public CacheKey fromRequest(HttpServletRequest request) {
+        return build(request.getRequestURI(), request.getQueryString(), request::getHeader);
+    }
+
+    /**
+     * @param uri     a path, optionally followed by a query string
+     * @param headers looks up request headers by name
+     * @return the key of the request
+     */
+    public CacheKey fromUri(String uri, Function<String, String> headers) {
+        int queryStart = uri.indexOf('?');
+        return queryStart == -1 ?
+                build(uri, null, headers) :
+                build(uri.substring(0, queryStart), uri.substring(queryStart + 1), headers);
+    }
+
+    private CacheKey build(String path, String rawQuery, Function<String, String> headers) {
+        SortedMap<String, String> keyHeaders = new TreeMap<>();
+        for (String name : props.getKeyHeaders()) {
+            String value = headers.apply(name);
+            if (value != null) {
+                // whitespace around the list separators doesn't change the meaning of the header
+                String normalized = value.trim().replaceAll("\\s*([,;])\\s*", "$1");
+                if (!normalized.isEmpty() && !normalized.equals("*/*")) {
+                    keyHeaders.put(name.toLowerCase(), normalized);
+                }
+            }
+        }
+
+        return new CacheKey(path, normalizeQuery(rawQuery), keyHeaders);
+    }
+
+    private String normalizeQuery(String rawQuery) {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return "";
+        }
+
+        List<String[]> params = new ArrayList<>();
+        for (String param : rawQuery.split("&")) {
+            if (param.isEmpty()) {
+                continue;
+            }
+
+            int separator = param.indexOf('=');
+            String name = decode(separator == -1 ? param : param.substring(0, separator));
+            String value = separator == -1 ? "" : decode(param.substring(separator + 1));
+            if (!CONTROL_PARAMS.contains(name) && !props.getIgnoredParams().contains(name)) {
+                params.add(new String[]{name, value});
+            }
+        }
+
+        // the order of the parameters doesn't matter to GitHub, so it shouldn't matter to us
+        return params.stream()
+                .sorted(comparing((String[] param) -> param[0]).thenComparing(param -> param[1]))
+                .map(param -> encode(param[0]) + "=" + encode(param[1]))
+                .collect(joining("&"));
+    }
+
+    private String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            // not properly encoded, take it as-is
+            return value;
+        }
+    }
+
+    private String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package ajk.ghcache.services;
+
+import ajk.ghcache.config.GHCacheProperties;
+import ajk.ghcache.config.GHCacheProperties.CachePolicy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches request paths against the configured cachedUris and cachePolicies. The patterns are compiled into a trie of
+ * path segments, so matching a path costs the same regardless of the number of patterns
+ */
+@Component
+public class CachePolicies {
+    @Autowired
+    private GHCacheProperties props;
+
+    private Node root;
+
+    private List<CachePolicy> literals;
+
+    @PostConstruct
+    public void compile() {
+        Node compiled = new Node();
+        Map<String, CachePolicy> literalPolicies = new HashMap<>();
+
+        // the plain cachedUris first, so the explicit policies of the same pattern override them
+        List<CachePolicy> all = new ArrayList<>();
+        for (String uri : props.getCachedUris()) {
+            CachePolicy policy = new CachePolicy();
+            policy.setPattern(uri);
+            all.add(policy);
+        }
+        all.addAll(props.getCachePolicies());
+
+        for (CachePolicy policy : all) {
+            CachePolicy resolved = resolve(policy);
+
+            Node node = compiled;
+            for (String segment : segments(resolved.getPattern())) {
+                if (segment.equals("**")) {
+                    node = node.rest == null ? (node.rest = new Node()) : node.rest;
+                    // nothing can follow **
+                    break;
+                } else if (segment.equals("*")) {
+                    node = node.any == null ? (node.any = new Node()) : node.any;
+                } else {
+                    node = node.children.computeIfAbsent(segment, key -> new Node());
+                }
+            }
+            node.policy = resolved;
+
+            if (!isPattern(resolved.getPattern())) {
+                literalPolicies.put(resolved.getPattern(), resolved);
+            }
+        }
+
+        root = compiled;
+        literals = new ArrayList<>(literalPolicies.values());
+    }
+
+    /**
+     * @param path request path
+     * @return the policy of the most specific pattern matching the path, or null if the path isn't cached
+     */
+    public CachePolicy match(String path) {
+        return match(root, segments(path), 0);
+    }
+
+    /**
+     * @return the policies of all the patterns that match exactly one path - these paths can be refreshed without
+     * ever being requested
+     */
+    public List<CachePolicy> getLiterals() {
+        return literals;
+    }
+
+    public static boolean isPattern(String pattern) {
+        return pattern.contains("*");
+    }
+
+    private CachePolicy match(Node node, String[] segments, int index) {
+        if (index == segments.length) {
+            if (node.policy != null) {
+                return node.policy;
+            }
+            // ** matches zero segments too
+            return node.rest == null ? null : node.rest.policy;
+        }
+
+        // literal segments are more specific than *, which is more specific than **
+        Node literal = node.children.get(segments[index]);
+        if (literal != null) {
+            CachePolicy policy = match(literal, segments, index + 1);
+            if (policy != null) {
+                return policy;
+            }
+        }
+
+        if (node.any != null) {
+            CachePolicy policy = match(node.any, segments, index + 1);
+            if (policy != null) {
+                return policy;
+            }
+        }
+
+        return node.rest == null ? null : node.rest.policy;
+    }
+
+    private String[] segments(String path) {
+        String trimmed = path.startsWith("/") ? path.substring(1) : path;
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("/", -1);
+    }
+
+    private CachePolicy resolve(CachePolicy policy) {
+        CachePolicy resolved = new CachePolicy();
+        resolved.setPattern(policy.getPattern());
+        resolved.setCacheMinutes(policy.getCacheMinutes() == null ? props.getCacheMinutes() : policy.getCacheMinutes());
+        resolved.setRespectGitHubCacheConfig(policy.getRespectGitHubCacheConfig() == null ?
+                props.isRespectGitHubCacheConfig() : policy.getRespectGitHubCacheConfig());
+        resolved.setRefreshPriority(policy.getRefreshPriority());
+        resolved.setPaginate(policy.isPaginate());
+        return resolved;
+    }
+
+    private static class Node {
+        private Map<String, Node> children = new HashMap<>();
+        private Node any;
+        private Node rest;
+        private CachePolicy policy;
+    }
+}
@@ -1,30 +1,51 @@
 package ajk.ghcache.services;
 
 import ajk.ghcache.config.GHCacheProperties;
+import ajk.ghcache.config.GHCacheProperties.CachePolicy;
+import ajk.ghcache.services.codecs.Codec;
+import ajk.ghcache.services.codecs.Codecs;
 import ajk.ghcache.services.repositories.ResponseRepository;
+import ajk.ghcache.services.resilience.CircuitBreaker;
+import ajk.ghcache.services.resilience.CircuitBreakers;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.http.Header;
 import org.apache.http.HeaderElement;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.fluent.Request;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache.ValueWrapper;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.interceptor.SimpleKey;
 import org.springframework.stereotype.Service;
 
-import java.io.ByteArrayInputStream;
+import javax.annotation.PostConstruct;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.hash.Hashing.sha256;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Comparator.comparing;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.regex.Pattern.CASE_INSENSITIVE;
-import static org.apache.commons.io.IOUtils.copy;
 import static org.apache.commons.logging.LogFactory.getLog;
 import static org.apache.http.client.fluent.Executor.newInstance;
 import static org.apache.http.client.fluent.Request.Get;
@@ -43,63 +64,231 @@ public class CacheService {
     @Autowired
     private MetricRegistry metrics;
 
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired
+    private CircuitBreakers breakers;
+
+    @Autowired
+    private Codecs codecs;
+
+    @Autowired
+    private PathTemplates templates;
+
+    @Autowired
+    private CachePolicies policies;
+
+    @Autowired
+    private HotKeys hotKeys;
+
+    @Autowired
+    private AdaptiveTtl adaptiveTtl;
+
+    // the cached keys requested other than the literal cached URIs (under patterns, with query parameters, with special
+    // headers), these are refreshed with the literal cached URIs
+    private Cache<CacheKey, CachePolicy> requestedKeys;
+
+    // keys GitHub just failed on, we won't try them again until they expire
+    private Cache<CacheKey, Boolean> failedKeys;
+
+    // the last successful response of every key, served when GitHub or Consul fail
+    private Cache<CacheKey, CachedResponse> lastKnownGood;
+
+    // decompressed, ready-to-send bodies by their body hash
+    private Cache<String, byte[]> bodies;
+
     private Pattern cacheMaxAge = Pattern.compile(".*max-age=(\\p{Digit}*).*", CASE_INSENSITIVE);
 
-    @Cacheable(value = "responses", unless = "#result == null || #root.args[1]")
-    public CachedResponse fetch(String path, boolean force) {
-        CachedResponse response;
-        if (force) {
-            response = cache.store(path, fetchFromRemote(path));
-        } else {
-            if (props.getCachedUris().contains(path)) {
-                response = cache.fetch(path);
-                if (response == null) {
-                    // this path is not in the cache, let's try the real thing
-                    response = cache.store(path, fetchFromRemote(path));
-                } else {
-                    metrics.meter("cache.cache-fetch").mark();
+    @PostConstruct
+    public void init() {
+        failedKeys = CacheBuilder.newBuilder()
+                .expireAfterWrite(props.getErrorCacheSeconds(), SECONDS)
+                .build();
+
+        // a handful of large responses (a whole organization's repos) can weigh more than thousands of small ones, so
+        // they're bounded by the size of their bodies. Bodies shared between keys are counted once per key
+        lastKnownGood = CacheBuilder.newBuilder()
+                .maximumWeight(props.getStaleCacheMegabytes() * 1024L * 1024L)
+                .weigher((CacheKey key, CachedResponse response) -> response.getPrepared().getBody().length)
+                .build();
+
+        bodies = CacheBuilder.newBuilder()
+                .weakValues()
+                .build();
+
+        // keys that aren't requested anymore stop being refreshed
+        requestedKeys = CacheBuilder.newBuilder()
+                .maximumSize(props.getRequestedKeysSize())
+                .expireAfterAccess(props.getCacheMinutes() * 2, MINUTES)
+                .build();
+    }
+
+    /**
+     * look the key up in the local cache only, without ever going to Consul or GitHub. This is cheap enough to run on
+     * the request thread
+     *
+     * @param key request key
+     * @return the locally cached response, or null if it has to be fetched
+     */
+    public CachedResponse peek(CacheKey key) {
+        // the key is built the same way the default key generator builds it for fetch(key, false)
+        ValueWrapper cached = cacheManager.getCache("responses").get(new SimpleKey(key, false));
+        if (cached == null) {
+            return null;
+        }
+
+        CachedResponse response = (CachedResponse) cached.get();
+        if (response.getValidUntil() < System.currentTimeMillis()) {
+            // the local cache keeps every response for the same time, the ones with a shorter validity (negative
+            // responses, GitHub's max-age, stale fallbacks) are fetched again once they expire
+            cacheManager.getCache("responses").evict(new SimpleKey(key, false));
+            return null;
+        }
+
+        hotKeys.recordHit(key);
+        return response;
+    }
+
+    /**
+     * @return true if the key's response is in the node's local cache, this doesn't count as a request of the key
+     */
+    public boolean isLocallyCached(CacheKey key) {
+        return cacheManager.getCache("responses").get(new SimpleKey(key, false)) != null;
+    }
+
+    @Cacheable(value = "responses",
+            unless = "#result == null || #root.args[1] || #result.statusLine.statusCode >= 500 || !@hotKeys.admit(#root.args[0])")
+    public CachedResponse fetch(CacheKey key, boolean force) {
+        long start = System.nanoTime();
+        if (!force) {
+            hotKeys.recordMiss(key);
+        }
+
+        CachedResponse response = null;
+        CachePolicy policy = policies.match(key.getPath());
+        boolean cachedUri = policy != null;
+        if (cachedUri && !force && !key.equals(CacheKey.of(policy.getPattern()))) {
+            // remember the keys that aren't literal cached URIs so they're refreshed as well, refreshing doesn't count as
+            // a request
+            requestedKeys.put(key, policy);
+        }
+
+        if (!force && cachedUri) {
+            if (breakers.forUrl(props.getConsulUrl()).isOpen()) {
+                // Consul is failing, don't wait for it if we have something to show
+                CachedResponse stale = lastKnownGood.getIfPresent(key);
+                if (stale != null) {
+                    metrics.meter("cache.stale-fallback").mark();
+                    return timed(key, "stale", start, stale);
                 }
-            } else {
-                response = fetchFromRemote(path);
+            }
+
+            response = cache.fetch(key);
+            if (response != null) {
+                metrics.meter("cache.cache-fetch").mark();
+            }
+        }
+
+        boolean hit = response != null;
+        if (response == null) {
+            // this path is not in the cache (or we're forced to refresh it), let's try the real thing
+            response = fetchFromRemote(key, policy);
+
+            if (response == null || isError(response)) {
+                // GitHub is failing, the last good response is better than an error
+                CachedResponse stale = lastKnownGood.getIfPresent(key);
+                if (stale != null) {
+                    metrics.meter("cache.stale-fallback").mark();
+                    return timed(key, "stale", start, stale);
+                }
+            }
+
+            if (response != null && (force || cachedUri)) {
+                cache.store(key, response);
             }
         }
 
         if (response != null) {
-            response.setContent(decompress(response.getContent()));
+            // precompute the headers, length and ETag once, while the response enters the local cache
+            response.prepare(decompressShared(response));
+
+            if (!isError(response)) {
+                lastKnownGood.put(key, response);
+            }
         }
 
+        return timed(key, response == null || isError(response) ? "error" : hit ? "hit" : "miss", start, response);
+    }
+
+    private CachedResponse timed(CacheKey key, String outcome, long start, CachedResponse response) {
+        metrics.timer(name("cache.fetch", templates.of(key.getPath()), outcome)).update(System.nanoTime() - start, NANOSECONDS);
         return response;
     }
 
-    private CachedResponse fetchFromRemote(String path) {
-        log.info("fetching direct " + path);
+    private boolean isError(CachedResponse response) {
+        return response.getStatusLine().getStatusCode() >= 500;
+    }
+
+    /**
+     * @param policy the cache policy of the key, null for pass-through keys
+     */
+    private CachedResponse fetchFromRemote(CacheKey key, CachePolicy policy) {
+        if (failedKeys.getIfPresent(key) != null) {
+            // GitHub failed on this key very recently, don't hammer it
+            metrics.meter("cache.remote-negative-hit").mark();
+            return null;
+        }
+
+        CircuitBreaker github = breakers.forUrl(props.getBaseRemoteUrl());
+        if (!github.allowRequest()) {
+            metrics.meter("cache.remote-short-circuit").mark();
+            return null;
+        }
+
+        log.info("fetching direct " + key);
         metrics.meter("cache.remote-fetch").mark();
+        String template = templates.of(key.getPath());
+        Timer.Context remoteTimer = metrics.timer(name("cache.remote-fetch", template)).time();
 
         try {
             URL url = props.getBaseRemoteUrl();
+            HttpHost host = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
             String username = props.getApiToken().split(":")[0];
             String token = props.getApiToken().split(":")[1];
 
             // make the initial request
+            Timer.Context pageTimer = metrics.timer(name("cache.remote-page", template)).time();
             HttpResponse response = newInstance(create().build())
-                    .authPreemptive(new HttpHost(url.getHost(), url.getPort(), url.getProtocol()))
-                    .auth(username, token)
-                    .execute(Get(props.getBaseRemoteUrl().toString() + path))
+                    .authPreemptive(host)
+                    .auth(host, username, token)
+                    .execute(withTimeouts(withKeyHeaders(Get(remoteUri(key)), key)))
                     .returnResponse();
+            pageTimer.stop();
+            recordOutcome(github, key, response);
 
             // create the result object to be cached
             CachedResponse result = new CachedResponse(response);
 
             // if this is a multiple item result, then we need to iterate over all pages by following the Link header
-            if (response.getFirstHeader("Link") != null) {
+            if (response.getFirstHeader("Link") != null && (policy == null || policy.isPaginate())) {
                 // fetch next page
                 String nextUrl = readNextLink(response.getFirstHeader("Link"));
                 do {
+                    pageTimer = metrics.timer(name("cache.remote-page", template)).time();
                     response = newInstance(create().build())
-                            .authPreemptive(new HttpHost(url.getHost(), url.getPort(), url.getProtocol()))
-                            .auth(username, token)
-                            .execute(Get(nextUrl))
+                            .authPreemptive(host)
+                            .auth(host, username, token)
+                            .execute(withTimeouts(withKeyHeaders(Get(nextUrl), key)))
                             .returnResponse();
+                    pageTimer.stop();
+                    if (recordOutcome(github, key, response)) {
+                        // a partial list is worse than an error, the error is cached for a short while
+                        CachedResponse error = new CachedResponse(response);
+                        error.setValidUntil(calculateCacheValidity(response, policy));
+                        compress(error);
+                        return error;
+                    }
 
                     // flatten result
                     ByteArrayOutputStream out = new ByteArrayOutputStream();
@@ -117,43 +306,129 @@ public class CacheService {
                 } while (nextUrl != null);
             }
 
-            // calculate the cache expiration using the last response
-            result.setValidUntil(calculateCacheValidity(response.getFirstHeader("Cache-Control")));
+            // calculate the cache expiration using the last response, cached URIs whose content doesn't change are kept
+            // for longer
+            long validUntil = calculateCacheValidity(response, policy);
+            int status = result.getStatusLine().getStatusCode();
+            if (policy != null && status >= 200 && status < 300) {
+                long now = System.currentTimeMillis();
+                String contentHash = sha256().hashString(result.getContent(), UTF_8).toString();
+                validUntil = now + adaptiveTtl.adapt(key, contentHash, validUntil - now);
+            }
+            result.setValidUntil(validUntil);
 
             // unfortunately for me the max size of the Consul value is 512K and we need more than that. Luckily all the
-            // responses are plain text (JSON) and compress well, so we'll store them compressed
-            result.setContent(compress(result.getContent()));
+            // responses are plain text (JSON) and compress well, so we'll store them compressed. The few that are still
+            // too large are split into parts by the repository
+            compress(result);
 
             return result;
-        } catch (IOException e) {
-            log.warn("unable to fetch " + props.getBaseRemoteUrl().toString() + path + ", " + e.getMessage(), e);
+        } catch (IOException | RuntimeException e) {
+            log.warn("unable to fetch " + props.getBaseRemoteUrl().toString() + key + ", " + e.getMessage(), e);
+            github.recordFailure();
+            failedKeys.put(key, true);
             return null;
+        } finally {
+            remoteTimer.stop();
         }
     }
 
-    private String decompress(String src) {
-        ByteArrayInputStream in = new ByteArrayInputStream(Base64.getDecoder().decode(src.getBytes()));
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        try (GZIPInputStream gzip = new GZIPInputStream(in)) {
-            copy(gzip, out);
-        } catch (Exception e) {
-            log.warn("unable to decompress " + src + ", " + e.getMessage(), e);
-            return "";
+    /**
+     * the key is resolved relative to the base URL, so nothing in it can change the scheme or the host the token is sent
+     * to
+     */
+    private URI remoteUri(CacheKey key) {
+        String base = props.getBaseRemoteUrl().toString();
+        try {
+            URI root = new URI(base.endsWith("/") ? base : base + "/");
+            // the ./ prefix makes sure the first segment is never mistaken for a scheme
+            return root.resolve(new URI("./" + key.getUri().substring(1)));
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("invalid path " + key.getUri(), e);
+        }
+    }
+
+    /**
+     * feed the remote response to the circuit breaker and remember failing keys
+     *
+     * @return true if the response is an error
+     */
+    private boolean recordOutcome(CircuitBreaker github, CacheKey key, HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() >= 500) {
+            github.recordFailure();
+            failedKeys.put(key, true);
+            return true;
+        }
+
+        github.recordSuccess();
+        return false;
+    }
+
+    /**
+     * responses with the same body share a single decompressed copy of its bytes, for as long as any of them is still
+     * around. The prepared body is never modified, so it's safe to share
+     */
+    private byte[] decompressShared(CachedResponse response) {
+        if (response.getBodyHash() == null) {
+            return decompress(response);
+        }
+
+        try {
+            return bodies.get(response.getBodyHash(), () -> decompress(response));
+        } catch (ExecutionException e) {
+            return decompress(response);
+        }
+    }
+
+    private byte[] decompress(CachedResponse response) {
+        Codec codec = codecs.forName(response.getCodec());
+        if (codec == null) {
+            log.warn("unable to decompress, codec " + response.getCodec() + " isn't available");
+            return new byte[0];
         }
 
-        return new String(out.toByteArray());
+        try (Timer.Context ignored = metrics.timer(name("cache.decompress", codec.getName())).time()) {
+            return codec.decode(Base64.getDecoder().decode(response.getContent()));
+        } catch (Exception e) {
+            log.warn("unable to decompress " + response.getContent() + ", " + e.getMessage(), e);
+            return new byte[0];
+        }
     }
 
-    private String compress(String src) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream(src.length());
-        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
-            copy(new ByteArrayInputStream(src.getBytes()), gzip);
+    private void compress(CachedResponse response) {
+        Codec codec = codecs.getDefault();
+        try (Timer.Context ignored = metrics.timer(name("cache.compress", codec.getName())).time()) {
+            byte[] raw = response.getContent().getBytes(UTF_8);
+            byte[] compressed = codec.encode(raw);
+            metrics.histogram("cache.payload-size.raw").update(raw.length);
+            metrics.histogram("cache.payload-size.compressed").update(compressed.length);
+
+            String content = Base64.getEncoder().encodeToString(compressed);
+            response.setContent(content);
+            response.setCodec(codec.getName());
+            response.setBodyHash(sha256().hashString(content, UTF_8).toString());
         } catch (Exception e) {
-            log.warn("error compressing " + src + ", " + e.getMessage(), e);
-            return "";
+            log.warn("error compressing " + response.getContent() + ", " + e.getMessage(), e);
+            response.setContent("");
+            response.setBodyHash(null);
         }
+    }
+
+    /**
+     * pass the request headers that are part of the key on to GitHub
+     */
+    private Request withKeyHeaders(Request request, CacheKey key) {
+        key.getHeaders().forEach(request::addHeader);
+        return request;
+    }
 
-        return new String(Base64.getEncoder().encode(out.toByteArray()));
+    /**
+     * a GitHub that hangs fails the call (and counts against its circuit breaker) instead of holding the fetch thread
+     */
+    private Request withTimeouts(Request request) {
+        return request
+                .connectTimeout(props.getRemoteConnectTimeoutMillis())
+                .socketTimeout(props.getRemoteSocketTimeoutMillis());
     }
 
     private String readNextLink(Header linkHeader) {
@@ -173,9 +448,22 @@ public class CacheService {
         return null;
     }
 
-    private long calculateCacheValidity(Header cacheControlHeader) {
-        long defaultValidity = System.currentTimeMillis() + (props.getCacheMinutes() * 60 * 1000);
-        if (!props.isRespectGitHubCacheConfig() || cacheControlHeader == null) {
+    private long calculateCacheValidity(HttpResponse response, CachePolicy policy) {
+        int status = response.getStatusLine().getStatusCode();
+        if (status >= 500) {
+            return System.currentTimeMillis() + (props.getErrorCacheSeconds() * 1000);
+        }
+        if (status == 404 || status == 410) {
+            return System.currentTimeMillis() + (props.getNegativeCacheSeconds() * 1000);
+        }
+
+        Header cacheControlHeader = response.getFirstHeader("Cache-Control");
+        int cacheMinutes = policy == null ? props.getCacheMinutes() : policy.getCacheMinutes();
+        boolean respectGitHubCacheConfig = policy == null ?
+                props.isRespectGitHubCacheConfig() : policy.getRespectGitHubCacheConfig();
+
+        long defaultValidity = System.currentTimeMillis() + (cacheMinutes * 60 * 1000);
+        if (!respectGitHubCacheConfig || cacheControlHeader == null) {
             // either there's no cache-control header or we're not respecting it (by configuration)
             return defaultValidity;
         }
@@ -195,11 +483,67 @@ public class CacheService {
         }
     }
 
+    /**
+     * @return a copy of the last good response of every key this node has, fresh and stale ones alike
+     */
+    public Map<CacheKey, CachedResponse> getLastKnownGood() {
+        return new HashMap<>(lastKnownGood.asMap());
+    }
+
+    /**
+     * warm the local caches with a response that was fetched before, for example by a previous run of this node. The
+     * response is only served as a regular cached response if it's still fresh, otherwise it's kept as the stale
+     * fallback
+     *
+     * @param key      request key
+     * @param response a response with decompressed content
+     */
+    public void warm(CacheKey key, CachedResponse response) {
+        response.prepare();
+        lastKnownGood.put(key, response);
+
+        if (response.getValidUntil() >= System.currentTimeMillis()) {
+            cacheManager.getCache("responses").put(new SimpleKey(key, false), response);
+        }
+    }
+
+    /**
+     * refresh the literal cached URIs and the other keys requested from this node
+     */
     public void rebuild() {
+        rebuild(true);
+    }
+
+    /**
+     * refresh the keys requested from this node under the cached URIs, highest priority first and within the same
+     * priority the most requested first. The requested keys are only known to the node they were requested from, so
+     * every node refreshes its own, while the literal cached URIs are the same on all the nodes and only need one node
+     * to refresh them
+     *
+     * @param literals whether to refresh the literal cached URIs as well
+     */
+    public void rebuild(boolean literals) {
         metrics.counter("cache.rebuild").inc();
 
-        for (String uri : props.getCachedUris()) {
-            fetch(uri, true);
+        Map<CacheKey, CachePolicy> keys = new HashMap<>(requestedKeys.asMap());
+        if (literals) {
+            policies.getLiterals().forEach(policy -> keys.put(CacheKey.of(policy.getPattern()), policy));
         }
+
+        // keys whose content has been stable may still be valid after the next refresh, they're left for a later one
+        long nextRefresh = System.currentTimeMillis() + MINUTES.toMillis(props.getCachedUrisRefreshMinutes());
+        keys.keySet().removeIf(key -> {
+            if (adaptiveTtl.isValidAt(key, nextRefresh)) {
+                metrics.meter("cache.rebuild-skipped").mark();
+                return true;
+            }
+            return false;
+        });
+
+        keys.entrySet().stream()
+                .sorted(comparing((Map.Entry<CacheKey, CachePolicy> entry) -> entry.getValue().getRefreshPriority())
+                        .thenComparing(entry -> hotKeys.estimate(entry.getKey()))
+                        .reversed())
+                .forEach(entry -> fetch(entry.getKey(), true));
     }
 }
@@ -1,5 +1,7 @@
 package ajk.ghcache.services;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.apache.http.Header;
@@ -12,6 +14,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Stream.of;
 
@@ -23,6 +26,28 @@ public class CachedResponse {
     private String content;
     private long validUntil;
 
+    /**
+     * when the response was fetched from GitHub
+     */
+    private long createdAt;
+
+    /**
+     * the name of the codec the stored content is compressed with, responses stored without it are gzipped
+     */
+    private String codec;
+
+    /**
+     * SHA-256 of the stored (compressed) content, responses with the same content share a single copy of it
+     */
+    private String bodyHash;
+
+    /**
+     * the ready-to-send form of this response, it's calculated from the decompressed content and never stored. Once
+     * it's there the content is dropped, the body is only kept as bytes
+     */
+    @JsonIgnore
+    private PreparedResponse prepared;
+
     public CachedResponse(HttpResponse response) throws IOException {
         // store the headers, but filter out the original "transfer-encoding", we'll let our application server decide
         // about its own encoding. Also filter out "link" because we're flattening the pagination anyway
@@ -33,6 +58,7 @@ public class CachedResponse {
                 .collect(toList());
 
         statusLine = new CachedStatusLine(response.getStatusLine());
+        createdAt = System.currentTimeMillis();
 
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         response.getEntity().writeTo(out);
@@ -40,8 +66,46 @@ public class CachedResponse {
         content = new String(out.toByteArray(), Charset.forName("UTF-8"));
     }
 
+    /**
+     * calculate the ready-to-send form of this response, this should only be called once the content is decompressed
+     *
+     * @return this response (as-is for easier usage)
+     */
+    public CachedResponse prepare() {
+        return prepare(content == null ? new byte[0] : content.getBytes(UTF_8));
+    }
+
+    /**
+     * calculate the ready-to-send form of this response with the given body and drop the content
+     *
+     * @param body the decompressed content
+     * @return this response (as-is for easier usage)
+     */
+    public CachedResponse prepare(byte[] body) {
+        prepared = new PreparedResponse(this, body);
+        content = null;
+        return this;
+    }
+
+    /**
+     * @return an unprepared copy of this prepared response with its content restored from the prepared body, for
+     * writing it out
+     */
+    public CachedResponse withContent() {
+        CachedResponse copy = new CachedResponse();
+        copy.setHeaders(headers);
+        copy.setStatusLine(statusLine);
+        copy.setValidUntil(validUntil);
+        copy.setCreatedAt(createdAt);
+        copy.setCodec(codec);
+        copy.setBodyHash(bodyHash);
+        copy.setContent(new String(prepared.getBody(), UTF_8));
+        return copy;
+    }
+
     @Data
     @NoArgsConstructor
+    @AllArgsConstructor
     public static class CachedHeader {
         private String name;
         private String value;
@@ -0,0 +1,229 @@
+package ajk.ghcache.services;
+
+import ajk.ghcache.config.GHCacheProperties;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Tracks the request counts of the cache keys in bounded memory. The counts are estimated with count-min sketches, which
+ * never under-count, and the keys with the highest counts are kept as the hot keys. The counts are halved periodically
+ * so they reflect the recent traffic.
+ * <p>
+ * Recording a request never waits for a lock, so the counts and the hot keys are approximate: a key that's promoted
+ * while another key is being promoted is skipped until its next request, and the requests recorded while the counts
+ * are being halved may or may not be halved with them
+ */
+@Component
+public class HotKeys {
+    // the number of hash functions of the sketches, each one adds a row of counters
+    private static final int DEPTH = 4;
+
+    @Autowired
+    private GHCacheProperties props;
+
+    @Autowired
+    private CachePolicies policies;
+
+    private int width;
+
+    private AtomicLongArray hits;
+
+    private AtomicLongArray misses;
+
+    // the current hot keys, never more than hotKeysSize
+    private Map<CacheKey, Boolean> top = new ConcurrentHashMap<>();
+
+    // the hot keys, coldest first. The counts are the estimates when the keys were last looked at, estimates only grow
+    // between decays so these are lower bounds of the current ones
+    private PriorityQueue<HeapEntry> heap = new PriorityQueue<>(comparing((HeapEntry entry) -> entry.count));
+
+    // the lowest estimate among the hot keys, a key has to beat it to become hot
+    private volatile long topMinimum;
+
+    // guards the heap and the membership of the hot keys
+    private final ReentrantLock lock = new ReentrantLock();
+
+    @PostConstruct
+    public void init() {
+        width = props.getHotKeysSketchWidth();
+        hits = new AtomicLongArray(DEPTH * width);
+        misses = new AtomicLongArray(DEPTH * width);
+    }
+
+    public void recordHit(CacheKey key) {
+        record(key, hits);
+    }
+
+    public void recordMiss(CacheKey key) {
+        record(key, misses);
+    }
+
+    /**
+     * @return the estimated number of recent requests of the key, never lower than the actual number
+     */
+    public long estimate(CacheKey key) {
+        return estimate(key, hits) + estimate(key, misses);
+    }
+
+    /**
+     * decide whether the response of the key is worth keeping in the node's local cache. The cached URIs are always
+     * admitted, the pass-through keys only once they've been requested often enough
+     */
+    public boolean admit(CacheKey key) {
+        return policies.match(key.getPath()) != null || estimate(key) >= props.getL1AdmissionThreshold();
+    }
+
+    /**
+     * @return the hot keys, hottest first
+     */
+    public List<HotKey> getTop() {
+        return top.keySet().stream()
+                .map(key -> new HotKey(key, estimate(key, hits), estimate(key, misses)))
+                .sorted(comparing(HotKey::getRequests).reversed())
+                .collect(toList());
+    }
+
+    /**
+     * halve all the counts, so old traffic counts less than new traffic
+     */
+    public void decay() {
+        lock.lock();
+        try {
+            for (int i = 0; i < hits.length(); i++) {
+                // the counters keep being incremented while we're at it, an increment is never lost
+                hits.getAndUpdate(i, count -> count >> 1);
+                misses.getAndUpdate(i, count -> count >> 1);
+            }
+
+            // halving every count keeps their order, so the heap stays valid
+            heap.forEach(entry -> entry.count = entry.count >> 1);
+            topMinimum = topMinimum >> 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(CacheKey key, AtomicLongArray counters) {
+        int hash = key.hashCode();
+        for (int row = 0; row < DEPTH; row++) {
+            counters.incrementAndGet(index(hash, row));
+        }
+
+        // the common case - a key that's already hot or not hot enough - doesn't need the lock
+        if (top.containsKey(key)) {
+            return;
+        }
+
+        long estimate = estimate(key);
+        if (estimate <= topMinimum || props.getHotKeysSize() <= 0) {
+            return;
+        }
+
+        // the request thread never waits, if another key is being promoted right now this one gets its chance on its
+        // next request
+        if (!lock.tryLock()) {
+            return;
+        }
+
+        try {
+            promote(key, estimate);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * must be called with the lock held
+     */
+    private void promote(CacheKey key, long estimate) {
+        if (top.containsKey(key) || estimate <= topMinimum) {
+            return;
+        }
+
+        if (top.size() >= props.getHotKeysSize()) {
+            HeapEntry coldest = coldest();
+            if (coldest.count >= estimate) {
+                // the counts moved since we checked, this key isn't hotter than the coldest one after all
+                topMinimum = coldest.count;
+                return;
+            }
+            heap.poll();
+            top.remove(coldest.key);
+        }
+
+        heap.add(new HeapEntry(key, estimate));
+        top.put(key, true);
+        if (top.size() >= props.getHotKeysSize()) {
+            topMinimum = coldest().count;
+        }
+    }
+
+    /**
+     * @return the coldest hot key, with its current count
+     */
+    private HeapEntry coldest() {
+        while (true) {
+            HeapEntry head = heap.peek();
+            long current = estimate(head.key);
+            if (current <= head.count) {
+                // every other count is at least its (lower bound) count in the heap, so this is the real minimum
+                return head;
+            }
+
+            // the head's count is out of date, put it back where it belongs and look again
+            heap.poll();
+            heap.add(new HeapEntry(head.key, current));
+        }
+    }
+
+    private long estimate(CacheKey key, AtomicLongArray counters) {
+        int hash = key.hashCode();
+        long result = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            result = Math.min(result, counters.get(index(hash, row)));
+        }
+        return result;
+    }
+
+    private int index(int hash, int row) {
+        // derive a hash function per row from the key's hash (double hashing)
+        int rowHash = hash + row * ((hash >>> 16) | 1) * 0x9E3779B9;
+        rowHash ^= rowHash >>> 15;
+        return row * width + ((rowHash & Integer.MAX_VALUE) % width);
+    }
+
+    @AllArgsConstructor
+    private static class HeapEntry {
+        private CacheKey key;
+        private long count;
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class HotKey {
+        private CacheKey key;
+        private long hits;
+        private long misses;
+
+        public long getRequests() {
+            return hits + misses;
+        }
+
+        public double getHitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ajk.ghcache.services;
+
+import ajk.ghcache.config.GHCacheProperties.CachePolicy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Maps request paths to the templates used in metric names - the cache pattern they match. The pass-through paths are
+ * unbounded, so they're all reported under a single template to keep the number of metrics in check
+ */
+@Component
+public class PathTemplates {
+    public static final String PASS_THROUGH = "pass-through";
+
+    @Autowired
+    private CachePolicies policies;
+
+    public String of(String path) {
+        CachePolicy policy = policies.match(path);
+        return policy == null ? PASS_THROUGH : policy.getPattern();
+    }
+}
@@ -0,0 +1,70 @@
+package ajk.ghcache.services;
+
+import ajk.ghcache.services.CachedResponse.CachedHeader;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.hash.Hashing.sha256;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * An immutable, ready-to-send form of a {@link CachedResponse}. It's computed once when the response enters the local
+ * cache so serving it is just a matter of copying the status, the headers and the body bytes to the client
+ */
+@Getter
+public class PreparedResponse {
+    private final int statusCode;
+    private final List<CachedHeader> headers;
+    private final byte[] body;
+    private final String etag;
+
+    /**
+     * @param response the response, only its status and headers are used
+     * @param body     its decompressed content
+     */
+    public PreparedResponse(CachedResponse response, byte[] body) {
+        statusCode = response.getStatusLine().getStatusCode();
+        this.body = body;
+        etag = "\"" + sha256().hashBytes(body).toString() + "\"";
+
+        // the upstream length and ETag describe the first page only, we've flattened the pagination so we'll calculate
+        // our own
+        List<CachedHeader> ready = new ArrayList<>();
+        response.getHeaders().stream()
+                .filter(header -> !header.getName().equalsIgnoreCase("content-length"))
+                .filter(header -> !header.getName().equalsIgnoreCase("etag"))
+                .forEach(ready::add);
+        ready.add(new CachedHeader("Content-Length", String.valueOf(body.length)));
+        ready.add(new CachedHeader("ETag", etag));
+
+        headers = unmodifiableList(ready);
+    }
+
+    /**
+     * check whether the client already has this response
+     *
+     * @param ifNoneMatch the value of the client's If-None-Match header, may be null
+     * @return true if one of the client's entity tags matches ours and the response can be answered with 304
+     */
+    public boolean isNotModified(String ifNoneMatch) {
+        if (ifNoneMatch == null || statusCode < 200 || statusCode >= 300) {
+            return false;
+        }
+
+        for (String tag : ifNoneMatch.split(",")) {
+            String candidate = tag.trim();
+            // If-None-Match uses the weak comparison, so a W/ prefix doesn't matter
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,146 @@
+package ajk.ghcache.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.logging.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache.ValueWrapper;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * Filters cached JSON responses down to the fields the client asked for. The filter is a single streaming pass over the
+ * JSON, and the result is cached by the response's ETag and the field set, so repeated projections of the same content
+ * are served from memory
+ */
+@Service
+public class ProjectionService {
+    private Log log = getLog(getClass());
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    /**
+     * normalize the value of the fields parameter, so the same set of fields always produces the same cache key
+     *
+     * @param fields comma separated field names, nested fields are separated by dots, for example
+     *               <code>full_name,owner.login</code>
+     * @return the sorted, de-duplicated field names
+     */
+    public static String normalize(String fields) {
+        SortedSet<String> sorted = new TreeSet<>();
+        for (String field : fields.split(",")) {
+            if (!field.trim().isEmpty()) {
+                sorted.add(field.trim());
+            }
+        }
+        return String.join(",", sorted);
+    }
+
+    /**
+     * look the projection up in the local cache only, without projecting anything. This is cheap enough to run on the
+     * request thread
+     *
+     * @param response a JSON response
+     * @param fields   normalized fields, see {@link #normalize(String)}
+     * @return the cached projection, or null if it has to be projected
+     */
+    public CachedResponse peek(CachedResponse response, String fields) {
+        // the key is built the same way project(response, fields) builds it
+        ValueWrapper cached = cacheManager.getCache("projections").get(response.getPrepared().getEtag() + " " + fields);
+        return cached == null ? null : (CachedResponse) cached.get();
+    }
+
+    /**
+     * @param response a JSON response, the fields are picked from the response object or from each object of a response
+     *                 array
+     * @param fields   normalized fields, see {@link #normalize(String)}
+     * @return the projected response, or the response itself if it can't be projected
+     */
+    @Cacheable(value = "projections", key = "#response.prepared.etag + ' ' + #fields")
+    public CachedResponse project(CachedResponse response, String fields) {
+        Field root = new Field();
+        for (String field : fields.split(",")) {
+            Field node = root;
+            for (String name : field.split("\\.")) {
+                node = node.children.computeIfAbsent(name, key -> new Field());
+            }
+        }
+
+        byte[] body = response.getPrepared().getBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+        JsonFactory factory = mapper.getFactory();
+        try (JsonParser parser = factory.createParser(body);
+             JsonGenerator generator = factory.createGenerator(out)) {
+            if (parser.nextToken() != null) {
+                filter(parser, generator, root);
+            }
+        } catch (IOException e) {
+            // not JSON after all, there's nothing to project
+            log.warn("unable to project " + fields + ", " + e.getMessage());
+            return response;
+        }
+
+        CachedResponse projected = new CachedResponse();
+        projected.setHeaders(response.getHeaders());
+        projected.setStatusLine(response.getStatusLine());
+        projected.setValidUntil(response.getValidUntil());
+        projected.setCreatedAt(response.getCreatedAt());
+        return projected.prepare(out.toByteArray());
+    }
+
+    /**
+     * copy the current value of the parser, keeping only the selected fields of objects. Arrays are filtered element by
+     * element
+     */
+    private void filter(JsonParser parser, JsonGenerator generator, Field selected) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (selected.children.isEmpty() || (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY)) {
+            // the whole value is selected
+            generator.copyCurrentStructure(parser);
+            return;
+        }
+
+        if (token == JsonToken.START_ARRAY) {
+            generator.writeStartArray();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                filter(parser, generator, selected);
+            }
+            generator.writeEndArray();
+            return;
+        }
+
+        generator.writeStartObject();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            Field field = selected.children.get(parser.getCurrentName());
+            parser.nextToken();
+            if (field == null) {
+                parser.skipChildren();
+            } else {
+                generator.writeFieldName(parser.getCurrentName());
+                filter(parser, generator, field);
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    private static class Field {
+        private Map<String, Field> children = new HashMap<>();
+    }
+}
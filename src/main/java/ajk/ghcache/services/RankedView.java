@@ -0,0 +1,51 @@
+package ajk.ghcache.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A view, fully ranked and serialized once per view generation. The serialized form is a JSON array of
+ * <code>[full_name, value]</code> pairs, and the offset table holds the end of each pair, so the top N is just the first
+ * bytes of the array followed by a closing bracket
+ */
+public class RankedView {
+    private static final byte[] EMPTY = "[]".getBytes();
+
+    private final byte[] json;
+
+    // offsets[i] is the offset right after the (i + 1)th pair
+    private final int[] offsets;
+
+    public RankedView(byte[] json, int[] offsets) {
+        this.json = json;
+        this.offsets = offsets;
+    }
+
+    public Slice top(int n) {
+        return new Slice(Math.min(n, offsets.length));
+    }
+
+    public class Slice {
+        private final int count;
+
+        private Slice(int count) {
+            this.count = count;
+        }
+
+        /**
+         * @return the length in bytes of the serialized slice
+         */
+        public int getLength() {
+            return count == 0 ? EMPTY.length : offsets[count - 1] + 1;
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            if (count == 0) {
+                out.write(EMPTY);
+            } else {
+                out.write(json, 0, offsets[count - 1]);
+                out.write(']');
+            }
+        }
+    }
+}
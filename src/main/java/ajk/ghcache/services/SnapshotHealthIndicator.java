@@ -0,0 +1,24 @@
+package ajk.ghcache.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the node unhealthy until its local caches were restored from the snapshot
+ */
+@Component
+public class SnapshotHealthIndicator extends AbstractHealthIndicator {
+    @Autowired
+    private SnapshotService snapshots;
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) throws Exception {
+        if (snapshots.isRestored()) {
+            builder.up();
+        } else {
+            builder.down().withDetail("snapshot", "restoring");
+        }
+    }
+}
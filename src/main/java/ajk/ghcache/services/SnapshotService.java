@@ -0,0 +1,167 @@
+package ajk.ghcache.services;
+
+import ajk.ghcache.config.GHCacheProperties;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.apache.commons.logging.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.cache.Cache.ValueWrapper;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.interceptor.SimpleKey;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * Saves the node's local caches to a file and loads them back on startup, so a restarted node doesn't have to warm up
+ * from Consul while serving requests
+ */
+@Service
+public class SnapshotService {
+    private Log log = getLog(getClass());
+
+    @Autowired
+    private GHCacheProperties props;
+
+    @Autowired
+    private CacheService cacheService;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    @Autowired
+    private MetricRegistry metrics;
+
+    private volatile boolean restored;
+
+    @PostConstruct
+    public void init() {
+        // the restore runs in the background while the node reports itself as unhealthy, so it won't get any traffic
+        // before it's done
+        Thread restore = new Thread(this::restore, "snapshot-restore");
+        restore.setDaemon(true);
+        restore.start();
+    }
+
+    /**
+     * @return true once the snapshot, if there is one, was loaded into the local caches
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        snapshot();
+    }
+
+    public void snapshot() {
+        if (!isEnabled() || !restored) {
+            // before the restore is done we'd be overwriting a good snapshot with a partial one
+            return;
+        }
+
+        try (Timer.Context ignored = metrics.timer("snapshot.save").time()) {
+            Snapshot snapshot = new Snapshot();
+            snapshot.setTakenAt(System.currentTimeMillis());
+            // the cached responses only keep their prepared bodies, the snapshot needs the content
+            cacheService.getLastKnownGood().forEach((key, response) ->
+                    snapshot.getResponses().add(new Entry(key, response.withContent())));
+
+            ValueWrapper repos = cacheManager.getCache("repos").get(SimpleKey.EMPTY);
+            if (repos != null) {
+                //noinspection unchecked
+                snapshot.setRepos((List<GitHubRepo>) repos.get());
+            }
+
+            // write to the side and move into place, so a crash while writing never leaves a broken snapshot
+            Path file = Paths.get(props.getSnapshotFile()).toAbsolutePath();
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            mapper.writeValue(tmp.toFile(), snapshot);
+            Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+
+            log.info("saved snapshot of " + snapshot.getResponses().size() + " responses to " + file);
+        } catch (Exception e) {
+            log.warn("couldn't save snapshot, " + e.getMessage(), e);
+        }
+    }
+
+    private void restore() {
+        try {
+            if (!isEnabled() || !new File(props.getSnapshotFile()).exists()) {
+                return;
+            }
+
+            try (Timer.Context ignored = metrics.timer("snapshot.restore").time();
+                 FileChannel channel = FileChannel.open(Paths.get(props.getSnapshotFile()), READ)) {
+                MappedByteBuffer buffer = channel.map(READ_ONLY, 0, channel.size());
+
+                Snapshot snapshot;
+                try (InputStream in = new ByteBufferBackedInputStream(buffer)) {
+                    snapshot = mapper.readValue(in, Snapshot.class);
+                }
+
+                // every response is kept as a stale fallback, only fresh ones are served as cached responses
+                snapshot.getResponses().forEach(entry -> cacheService.warm(entry.getKey(), entry.getResponse()));
+
+                // the views don't carry their own expiration, they're good until the next view refresh
+                long viewsValidUntil = snapshot.getTakenAt() + props.getViewRefreshMinutes() * 60 * 1000;
+                if (snapshot.getRepos() != null && !snapshot.getRepos().isEmpty() &&
+                        viewsValidUntil >= System.currentTimeMillis()) {
+                    cacheManager.getCache("repos").put(SimpleKey.EMPTY, snapshot.getRepos());
+                }
+
+                log.info("restored snapshot of " + snapshot.getResponses().size() + " responses");
+            }
+        } catch (IOException e) {
+            // a broken snapshot only means a cold start
+            log.warn("couldn't restore snapshot, " + e.getMessage(), e);
+        } finally {
+            restored = true;
+        }
+    }
+
+    private boolean isEnabled() {
+        return props.getSnapshotFile() != null && !props.getSnapshotFile().isEmpty();
+    }
+
+    @Data
+    public static class Snapshot {
+        private long takenAt;
+        private List<Entry> responses = new ArrayList<>();
+        private List<GitHubRepo> repos;
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        private CacheKey key;
+        private CachedResponse response;
+    }
+}
@@ -2,23 +2,33 @@ package ajk.ghcache.services;
 
 import ajk.ghcache.config.GHCacheProperties;
 import ajk.ghcache.config.GHCacheProperties.RepoView;
+import ajk.ghcache.services.cluster.LeaderElection;
 import ajk.ghcache.services.converters.DateConverter;
 import ajk.ghcache.services.converters.NumberConverter;
 import ajk.ghcache.services.repositories.GitHubRepoRepository;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.AllArgsConstructor;
 import org.apache.commons.logging.Log;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.convert.converter.Converter;
 import org.springframework.stereotype.Service;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 import static ajk.ghcache.config.GHCacheProperties.RepoView.ToNumConverter.fromNumber;
+import static java.util.Collections.reverseOrder;
+import static java.util.Comparator.comparing;
+import static java.util.Comparator.nullsLast;
 import static org.apache.commons.logging.LogFactory.getLog;
 
 @Service
@@ -34,9 +44,15 @@ public class ViewService {
     @Autowired
     private GitHubRepoRepository gitHubRepoRepository;
 
+    @Autowired
+    private LeaderElection leaderElection;
+
     @Autowired
     private ObjectMapper mapper;
 
+    @Autowired
+    private MetricRegistry metrics;
+
     // if we'll need more converters we could put them in a map and look them up by the enum value, for now this is enough
     @Autowired
     private NumberConverter numberConverter;
@@ -45,53 +61,91 @@ public class ViewService {
     @Autowired
     private DateConverter dateConverter;
 
+    private volatile Generation generation;
+
     private Pattern viewPattern = Pattern.compile("/view/top/(\\p{Digit}*)/([\\p{Alnum}\\p{Punct}]*)");
 
-    public List<Object[]> getTopN(String request) {
+    /**
+     * @param request the view request URI, /view/top/{n}/{path}
+     * @return the top n of the view, or null if there's no such view
+     */
+    public RankedView.Slice getTopN(String request) throws IOException {
         Matcher matcher = viewPattern.matcher(request);
 
-        if (!matcher.matches()) {
+        if (!matcher.matches() || matcher.group(1).isEmpty()) {
             return null;
         }
 
+        try (Timer.Context ignored = metrics.timer("views.top-n").time()) {
+            RankedView view = getGeneration().get(matcher.group(2));
+            return view == null ? null : view.top(Integer.parseInt(matcher.group(1)));
+        } catch (NumberFormatException e) {
+            // more digits than an int
+            return null;
+        }
+    }
+
+    /**
+     * the views only change when the repos are reloaded, so every load of the repos is a new generation of views, which
+     * is ranked and serialized once and then served as-is
+     */
+    private Map<String, RankedView> getGeneration() throws IOException {
         List<GitHubRepo> repos = gitHubRepoRepository.findAll();
-        int n = Integer.parseInt(matcher.group(1));
-        String path = matcher.group(2);
-
-        repos.sort((o1, o2) -> {
-            Long f1 = o1.getViewField().get(path);
-            Long f2 = o2.getViewField().get(path);
-
-            return f2 == null ? 1 : f2.compareTo(f1);
-        });
-
-        return
-                repos.stream()
-                        .limit(n)
-                        .map(it -> {
-                            Object[] result = new Object[2];
-                            result[0] = it.getFullName();
-                            result[1] = it.getViewField().get(path);
-                            return result;
-                        })
-                        .collect(Collectors.toList());
 
+        // the repos are cached, so as long as we get the same instance we're still in the same generation
+        Generation current = generation;
+        if (current != null && current.repos == repos) {
+            return current.views;
+        }
+
+        Map<String, RankedView> views = new HashMap<>();
+        for (RepoView view : props.getRepoViews()) {
+            String path = view.getPath() == null ? view.getField() : view.getPath();
+            views.put(path, rank(repos, path));
+        }
+
+        generation = new Generation(repos, views);
+        metrics.counter("views.generations").inc();
+        return views;
     }
 
-    public void cacheViews() {
-        // to make sure that we're the only node in the cluster updating the views, we'll lock here
-        String lock = gitHubRepoRepository.acquireLock();
-        if (lock == null) {
-            // someone beat us to the punch, no work left to do
-            return;
+    private RankedView rank(List<GitHubRepo> repos, String path) throws IOException {
+        // sort a copy, the repos list is shared through the cache
+        List<GitHubRepo> sorted = new ArrayList<>(repos);
+        sorted.sort(comparing((GitHubRepo repo) -> repo.getViewField().get(path), nullsLast(reverseOrder())));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] offsets = new int[sorted.size()];
+        out.write('[');
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            GitHubRepo repo = sorted.get(i);
+            out.write(mapper.writeValueAsBytes(new Object[]{repo.getFullName(), repo.getViewField().get(path)}));
+            offsets[i] = out.size();
+        }
+        out.write(']');
+
+        return new RankedView(out.toByteArray(), offsets);
+    }
+
+    /**
+     * @return false if this node isn't the cluster leader and so didn't refresh the views
+     */
+    public boolean cacheViews() {
+        // to make sure that we're the only node in the cluster updating the views, only the leader does it
+        if (!leaderElection.isLeader()) {
+            log.debug("not the cluster leader, " + leaderElection.getLeader() + " is caching the views");
+            return false;
         }
 
         try {
-            CachedResponse cachedResponse = cache.fetch(props.getRepoViewsRoot(), false);
+            CachedResponse cachedResponse = cache.fetch(CacheKey.of(props.getRepoViewsRoot()), false);
 
             // we have all the nodes in JSON format, we don't want to model the entire GitHub API, instead we just want to
             // store each repo as-is but store the required view fields separately so we could later sort by them
-            String allRepos = cachedResponse.getContent();
+            byte[] allRepos = cachedResponse.getPrepared().getBody();
             List<GitHubRepo> repos = new ArrayList<>();
 
             for (ObjectNode node : mapper.readValue(allRepos, ObjectNode[].class)) {
@@ -109,13 +163,20 @@ public class ViewService {
                 repos.add(repo);
             }
 
-            gitHubRepoRepository.store(repos);
+            metrics.histogram("views.repo-count").update(repos.size());
+            try (Timer.Context ignored = metrics.timer("views.store").time()) {
+                gitHubRepoRepository.store(repos);
+            }
         } catch (Exception e) {
             log.error("couldn't cache views, " + e.getMessage(), e);
-        } finally {
-            // make sure we release the lock, if we don't then the session will expire anyway, but this would let others
-            // reacquire the lock faster
-            gitHubRepoRepository.releaseLock(lock);
         }
+
+        return true;
+    }
+
+    @AllArgsConstructor
+    private static class Generation {
+        private List<GitHubRepo> repos;
+        private Map<String, RankedView> views;
     }
 }
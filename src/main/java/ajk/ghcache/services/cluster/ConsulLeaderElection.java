@@ -0,0 +1,211 @@
+package ajk.ghcache.services.cluster;
+
+import ajk.ghcache.config.GHCacheProperties;
+import ajk.ghcache.services.repositories.ConsulUtils;
+import ajk.ghcache.services.repositories.ConsulUtils.ConsulResponse;
+import ajk.ghcache.services.resilience.CircuitBreaker;
+import ajk.ghcache.services.resilience.CircuitBreakers;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.Data;
+import org.apache.commons.logging.Log;
+import org.apache.http.HttpResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.apache.http.client.fluent.Request.Get;
+import static org.apache.http.client.fluent.Request.Put;
+import static org.apache.http.entity.ContentType.APPLICATION_JSON;
+import static org.apache.http.entity.ContentType.TEXT_PLAIN;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+
+/**
+ * Leader election with a Consul lock. Each node keeps a single long-lived session, renewed in the background, and the
+ * node whose session holds the leader key is the leader until its session is destroyed or expires. The leader key's
+ * value is the leader's name, so the followers always know who the leader is
+ */
+@Component
+public class ConsulLeaderElection implements LeaderElection {
+    private Log log = getLog(getClass());
+
+    @Autowired
+    private GHCacheProperties props;
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    @Autowired
+    private ConsulUtils consulUtils;
+
+    @Autowired
+    private MetricRegistry metrics;
+
+    @Autowired
+    private CircuitBreakers breakers;
+
+    private String myName;
+
+    private volatile String session;
+
+    private volatile boolean leader;
+
+    private volatile String leaderName;
+
+    public ConsulLeaderElection() throws UnknownHostException {
+        myName = InetAddress.getLocalHost().getHostName();
+    }
+
+    @PostConstruct
+    public void init() {
+        metrics.register("cluster.leader", (Gauge<Integer>) () -> leader ? 1 : 0);
+    }
+
+    @Override
+    public boolean isLeader() {
+        return leader;
+    }
+
+    @Override
+    public String getLeader() {
+        return leaderName;
+    }
+
+    @Override
+    public synchronized void renew() {
+        CircuitBreaker consul = breakers.forUrl(props.getConsulUrl());
+        if (!consul.allowRequest()) {
+            // Consul is failing, so we can't tell whether someone else took over and must step down
+            stepDown();
+            return;
+        }
+
+        try {
+            if (session == null || !renewSession()) {
+                session = createSession();
+            }
+
+            // acquiring a lock we already hold succeeds, so this both keeps and takes the leadership
+            boolean acquired = acquire();
+            if (acquired != leader) {
+                log.info(acquired ? "became the cluster leader" : "lost the cluster leadership");
+            }
+            leader = acquired;
+            leaderName = acquired ? myName : readLeader();
+            consul.recordSuccess();
+        } catch (Exception e) {
+            // without Consul we can't tell whether someone else took over, so we must step down
+            log.warn("couldn't renew the leadership session, " + e.getMessage(), e);
+            consul.recordFailure();
+            stepDown();
+        }
+    }
+
+    private void stepDown() {
+        if (leader) {
+            log.info("lost the cluster leadership");
+        }
+        leader = false;
+        leaderName = null;
+    }
+
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (session == null) {
+            return;
+        }
+
+        leader = false;
+        try {
+            // destroying the session releases the lock right away, so another node takes over on its next renewal
+            // instead of waiting for the session to expire
+            consulUtils.execute(Put(props.getConsulUrl().toString() + "/v1/session/destroy/" + session))
+                    .discardContent();
+        } catch (Exception e) {
+            log.warn("couldn't destroy the leadership session, " + e.getMessage(), e);
+        }
+    }
+
+    private String createSession() throws IOException {
+        String request = mapper.writeValueAsString(new SessionRequest(
+                "ghcache-" + myName, props.getLeaderSessionTtlSeconds() + "s"));
+
+        String response = consulUtils.execute(
+                Put(props.getConsulUrl().toString() + "/v1/session/create").bodyString(request, APPLICATION_JSON))
+                .returnContent().asString();
+
+        return mapper.readValue(response, ConsulSession.class).getId();
+    }
+
+    /**
+     * @return false if the session no longer exists, for example because it expired
+     */
+    private boolean renewSession() throws IOException {
+        HttpResponse response = consulUtils.execute(
+                Put(props.getConsulUrl().toString() + "/v1/session/renew/" + session))
+                .returnResponse();
+
+        if (response.getStatusLine().getStatusCode() == NOT_FOUND.value()) {
+            log.info("leadership session " + session + " expired");
+            return false;
+        }
+
+        if (response.getStatusLine().getStatusCode() >= 300) {
+            throw new IOException("unable to renew session " + session + ", " + response.getStatusLine());
+        }
+
+        return true;
+    }
+
+    private boolean acquire() throws IOException {
+        String result = consulUtils.execute(
+                Put(getLeaderUrl() + "?acquire=" + session).bodyString(myName, TEXT_PLAIN))
+                .returnContent().asString();
+
+        return "true".equals(result.trim());
+    }
+
+    private String readLeader() throws IOException {
+        HttpResponse response = consulUtils.execute(Get(getLeaderUrl())).returnResponse();
+        ConsulResponse value = consulUtils.readResponse(response);
+
+        // the value stays after the lock is released, only a key held by a session names the leader
+        return value == null || value.getSession() == null ? null : consulUtils.decode(value);
+    }
+
+    private String getLeaderUrl() {
+        return props.getConsulUrl().toString() + "/v1/kv/" + props.getConsulKVRoot() + "/leader";
+    }
+
+    @Data
+    public static class SessionRequest {
+        @JsonProperty("Name")
+        private final String name;
+
+        @JsonProperty("TTL")
+        private final String ttl;
+
+        // when the session is gone the lock is released, so the next node can take over
+        @JsonProperty("Behavior")
+        private final String behavior = "release";
+
+        // by default Consul won't let anyone acquire a released lock for 15s, our leader releases it on purpose when it
+        // shuts down, so there's no reason to wait
+        @JsonProperty("LockDelay")
+        private final String lockDelay = "0s";
+    }
+
+    @Data
+    public static class ConsulSession {
+        @JsonProperty("ID")
+        private String id;
+    }
+}
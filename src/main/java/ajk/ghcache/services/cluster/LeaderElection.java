@@ -0,0 +1,19 @@
+package ajk.ghcache.services.cluster;
+
+public interface LeaderElection {
+    /**
+     * @return true if this node currently holds the cluster leadership. Only the leader runs the scheduled refreshes
+     */
+    boolean isLeader();
+
+    /**
+     * @return the name of the current leader node, or null if there's no leader right now
+     */
+    String getLeader();
+
+    /**
+     * keep this node's leadership session alive and try to take the leadership if no one holds it. This must be called
+     * periodically, well within the session TTL
+     */
+    void renew();
+}
@@ -0,0 +1,18 @@
+package ajk.ghcache.services.codecs;
+
+import java.io.IOException;
+
+/**
+ * Compresses the cached responses before they're stored. The name of the codec is stored with each response, so a
+ * codec's encoding must never change once it was used - a new encoding requires a new name
+ */
+public interface Codec {
+    /**
+     * @return the unique name of this codec, as stored with the encoded responses
+     */
+    String getName();
+
+    byte[] encode(byte[] src) throws IOException;
+
+    byte[] decode(byte[] src) throws IOException;
+}
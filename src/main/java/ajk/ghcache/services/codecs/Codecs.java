@@ -0,0 +1,52 @@
+package ajk.ghcache.services.codecs;
+
+import ajk.ghcache.config.GHCacheProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All the available codecs by name. New responses are encoded with the configured codec, stored responses are decoded
+ * with the codec they were encoded with
+ */
+@Component
+public class Codecs {
+    // responses stored before the codec was recorded were always gzipped
+    private static final String LEGACY_CODEC = "gzip";
+
+    @Autowired
+    private GHCacheProperties props;
+
+    @Autowired
+    private List<Codec> codecs;
+
+    private Map<String, Codec> byName = new HashMap<>();
+
+    @PostConstruct
+    public void init() {
+        codecs.forEach(codec -> byName.put(codec.getName(), codec));
+
+        if (!byName.containsKey(props.getCodec())) {
+            throw new IllegalStateException("unknown codec " + props.getCodec() + ", available codecs are " + byName.keySet());
+        }
+    }
+
+    /**
+     * @return the codec new responses are encoded with
+     */
+    public Codec getDefault() {
+        return byName.get(props.getCodec());
+    }
+
+    /**
+     * @param name the codec name stored with the response, may be null
+     * @return the codec, or null if it isn't available on this node
+     */
+    public Codec forName(String name) {
+        return byName.get(name == null ? LEGACY_CODEC : name);
+    }
+}
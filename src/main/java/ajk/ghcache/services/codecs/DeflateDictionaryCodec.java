@@ -0,0 +1,92 @@
+package ajk.ghcache.services.codecs;
+
+import ajk.ghcache.config.GHCacheProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.apache.commons.io.IOUtils.toByteArray;
+
+/**
+ * Deflate with a preset dictionary of the field names and values that repeat across the GitHub API JSON documents.
+ * Each document is compressed on its own, so without a dictionary every one of them pays again for the same field
+ * names; with it even small documents compress well
+ */
+@Component
+public class DeflateDictionaryCodec implements Codec {
+    // the dictionary is part of the format, changing it means a new version and a new codec name
+    private static final String DICTIONARY = "codecs/github-v1.dict";
+
+    @Autowired
+    private GHCacheProperties props;
+
+    private byte[] dictionary;
+
+    @PostConstruct
+    public void loadDictionary() throws IOException {
+        try (InputStream in = new ClassPathResource(DICTIONARY).getInputStream()) {
+            dictionary = toByteArray(in);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "deflate-dict-v1";
+    }
+
+    @Override
+    public byte[] encode(byte[] src) throws IOException {
+        Deflater deflater = new Deflater(props.getGzipLevel());
+        try {
+            deflater.setDictionary(dictionary);
+            deflater.setInput(src);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(src.length / 4);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decode(byte[] src) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(src);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(src.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("truncated deflate stream");
+                    }
+                }
+                out.write(buffer, 0, count);
+            }
+
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
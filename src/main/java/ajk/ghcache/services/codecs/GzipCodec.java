@@ -0,0 +1,47 @@
+package ajk.ghcache.services.codecs;
+
+import ajk.ghcache.config.GHCacheProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.apache.commons.io.IOUtils.copy;
+
+@Component
+public class GzipCodec implements Codec {
+    @Autowired
+    private GHCacheProperties props;
+
+    @Override
+    public String getName() {
+        return "gzip";
+    }
+
+    @Override
+    public byte[] encode(byte[] src) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(src.length / 4);
+        // the level doesn't affect the format, so it's safe to change it without renaming the codec
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {{
+            def.setLevel(props.getGzipLevel());
+        }}) {
+            gzip.write(src);
+        }
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public byte[] decode(byte[] src) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(src.length * 4);
+        try (GZIPInputStream gzip = new GZIPInputStream(new ByteArrayInputStream(src))) {
+            copy(gzip, out);
+        }
+
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,40 @@
+package ajk.ghcache.services.codecs;
+
+import net.jpountz.lz4.LZ4Factory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * LZ4 trades some compression ratio for much faster compression and decompression. It's only available when the lz4
+ * jar is on the classpath
+ */
+@Component
+@ConditionalOnClass(name = "net.jpountz.lz4.LZ4Factory")
+public class Lz4Codec implements Codec {
+    private LZ4Factory lz4 = LZ4Factory.fastestInstance();
+
+    @Override
+    public String getName() {
+        return "lz4";
+    }
+
+    @Override
+    public byte[] encode(byte[] src) throws IOException {
+        // LZ4 blocks don't record their original length, so we'll prefix it
+        byte[] compressed = lz4.fastCompressor().compress(src);
+        return ByteBuffer.allocate(4 + compressed.length).putInt(src.length).put(compressed).array();
+    }
+
+    @Override
+    public byte[] decode(byte[] src) throws IOException {
+        if (src.length < 4) {
+            throw new IOException("truncated lz4 block");
+        }
+
+        int length = ByteBuffer.wrap(src).getInt();
+        return lz4.fastDecompressor().decompress(src, 4, length);
+    }
+}
@@ -0,0 +1,23 @@
+package ajk.ghcache.services.repositories;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Stored in place of a value that's too large for a single Consul key. The value itself is split into parts stored
+ * under <code>&lt;key&gt;.parts/&lt;sha256&gt;/&lt;index&gt;</code>
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChunkManifest {
+    /**
+     * SHA-256 of the whole value, used both to name the parts and to verify them once they're put back together
+     */
+    private String sha256;
+
+    private int size;
+
+    private int parts;
+}
@@ -0,0 +1,60 @@
+package ajk.ghcache.services.repositories;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.hash.Hashing.sha256;
+import static java.util.Arrays.copyOfRange;
+
+/**
+ * Splits values that are too large for a single Consul key into parts, and puts them back together
+ */
+class Chunks {
+    private Chunks() {
+    }
+
+    /**
+     * @return the parts of the value, each one chunkSize long except for the last one
+     */
+    static List<byte[]> split(byte[] value, int chunkSize) {
+        List<byte[]> parts = new ArrayList<>();
+        for (int start = 0; start < value.length; start += chunkSize) {
+            parts.add(copyOfRange(value, start, Math.min(start + chunkSize, value.length)));
+        }
+        return parts;
+    }
+
+    /**
+     * @return the manifest of a value split into the given number of parts
+     */
+    static ChunkManifest manifest(byte[] value, int parts) {
+        return new ChunkManifest(sha256().hashBytes(value).toString(), value.length, parts);
+    }
+
+    /**
+     * @param parts the parts in order, a missing part is null
+     * @return the reassembled value, or null if a part is missing or the parts don't add up to the value of the
+     * manifest
+     */
+    static byte[] join(ChunkManifest manifest, List<byte[]> parts) {
+        if (parts.size() != manifest.getParts()) {
+            return null;
+        }
+
+        ByteArrayOutputStream value = new ByteArrayOutputStream(manifest.getSize());
+        for (byte[] part : parts) {
+            if (part == null) {
+                return null;
+            }
+            value.write(part, 0, part.length);
+        }
+
+        byte[] bytes = value.toByteArray();
+        if (bytes.length != manifest.getSize() || !sha256().hashBytes(bytes).toString().equals(manifest.getSha256())) {
+            return null;
+        }
+
+        return bytes;
+    }
+}
@@ -1,25 +1,56 @@
 package ajk.ghcache.services.repositories;
 
 import ajk.ghcache.config.GHCacheProperties;
+import ajk.ghcache.services.CacheKey;
 import ajk.ghcache.services.CachedResponse;
+import ajk.ghcache.services.PathTemplates;
+import ajk.ghcache.services.repositories.ConsulUtils.ConsulResponse;
+import ajk.ghcache.services.resilience.CircuitBreaker;
+import ajk.ghcache.services.resilience.CircuitBreakers;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+import static com.codahale.metrics.MetricRegistry.name;
+import static com.google.common.hash.Hashing.sha256;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.apache.commons.logging.LogFactory.getLog;
-import static org.apache.http.client.fluent.Executor.newInstance;
 import static org.apache.http.client.fluent.Request.Delete;
 import static org.apache.http.client.fluent.Request.Get;
 import static org.apache.http.client.fluent.Request.Put;
-import static org.apache.http.entity.ContentType.TEXT_PLAIN;
+import static org.springframework.http.HttpStatus.OK;
 
+/**
+ * Stores the responses in Consul in two parts: the (compressed) bodies are stored once per content under
+ * <code>&lt;root&gt;/bodies/&lt;body hash&gt;</code>, and every key stores its own metadata (status, headers, validity)
+ * under <code>&lt;root&gt;/responses/&lt;key digest&gt;</code> with a reference to its body
+ */
 @Component
 public class ConsulResponseRepository implements ResponseRepository {
+    // Consul flags value marking a manifest of a value that was split into parts
+    private static final int CHUNKED = 1;
+
     private Log log = getLog(getClass());
 
     @Autowired
@@ -34,60 +65,471 @@ public class ConsulResponseRepository implements ResponseRepository {
     @Autowired
     private MetricRegistry metrics;
 
-    public CachedResponse store(String path, CachedResponse result) {
-        log.info("caching " + path);
+    @Autowired
+    private CircuitBreakers breakers;
+
+    @Autowired
+    private PathTemplates templates;
+
+    @Autowired
+    private ThreadPoolTaskExecutor consulExecutor;
+
+    // hashes of the bodies this node knows are already stored, and when it last made sure they're there. Storing a
+    // response with one of them only writes the metadata
+    private Cache<String, Long> knownBodies;
+
+    // hashes of the bodies no response referred to in the last sweep
+    private Set<String> unreferencedBodies = new HashSet<>();
 
+    @PostConstruct
+    public void init() {
+        // the bodies are kept for several refresh periods, those confirmed more than a sweep ago are looked up again
+        // before they're reused (see isBodyStored)
+        knownBodies = CacheBuilder.newBuilder()
+                .maximumSize(props.getRequestedKeysSize())
+                .expireAfterWrite(props.getCachedUrisRefreshMinutes() * 4, MINUTES)
+                .build();
+    }
+
+    public CachedResponse store(CacheKey key, CachedResponse result) {
+        CircuitBreaker consul = breakers.forUrl(props.getConsulUrl());
+        if (!consul.allowRequest()) {
+            log.info("not caching " + key + ", Consul is unavailable");
+            return result;
+        }
+
+        log.info("caching " + key);
+
+        long start = System.nanoTime();
+        String outcome = "error";
         try {
-            String storeUrl = props.getConsulUrl().toString() + "/v1/kv/" + props.getConsulKVRoot() + path;
-            HttpResponse response = newInstance().execute(Put(storeUrl)
-                    .bodyString(mapper.writeValueAsString(result), TEXT_PLAIN)).returnResponse();
-            log.info(path + ": " + response.getStatusLine());
-        } catch (IOException e) {
-            log.warn("couldn't cache path " + path + ", " + e.getMessage(), e);
+            String content = result.getContent() == null ? "" : result.getContent();
+            String bodyHash = result.getBodyHash() == null ?
+                    sha256().hashString(content, UTF_8).toString() :
+                    result.getBodyHash();
+
+            if (!isBodyStored(consul, bodyHash)) {
+                byte[] body = content.getBytes(UTF_8);
+                metrics.histogram("responses.consul-value-size").update(body.length);
+
+                HttpResponse response = body.length <= props.getConsulChunkSize() ?
+                        put(getBodyKey(bodyHash), body, 0) :
+                        storeChunked(getBodyKey(bodyHash), body);
+                if (recordOutcome(consul, response) || !isStored(response)) {
+                    // the metadata isn't written either, it would point at a body that isn't there
+                    log.warn("couldn't cache the body of " + key + ", " + response.getStatusLine());
+                    return result;
+                }
+                knownBodies.put(bodyHash, System.currentTimeMillis());
+            } else {
+                // the same content is already there, only the metadata changes
+                metrics.meter("responses.consul-body-reused").mark();
+            }
+
+            HttpResponse response = put(getResponseKey(key), mapper.writeValueAsBytes(metadata(result, bodyHash)), 0);
+            log.info(key + ": " + response.getStatusLine());
+            if (!recordOutcome(consul, response)) {
+                if (isStored(response)) {
+                    outcome = "ok";
+                } else {
+                    log.warn("Consul rejected " + key + ", " + response.getStatusLine());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("couldn't cache " + key + ", " + e.getMessage(), e);
+            consul.recordFailure();
+        } finally {
+            time("responses.consul-store", key, outcome, start);
         }
 
         return result;
     }
 
-    public CachedResponse fetch(String path) {
+    public CachedResponse fetch(CacheKey key) {
+        CircuitBreaker consul = breakers.forUrl(props.getConsulUrl());
+        if (!consul.allowRequest()) {
+            // treat it as a miss, the caller will decide whether to use stale data or go to GitHub
+            metrics.meter("responses.cache-short-circuit").mark();
+            return null;
+        }
+
+        long start = System.nanoTime();
+        String outcome = "error";
         try {
             // do some error validation - if the value doesn't exist in Consul - return null
-            HttpResponse rawResponse = newInstance().execute(Get(getStoreUrl(path))).returnResponse();
-            String decoded = consulUtils.responseToJson(rawResponse);
-            if (decoded == null) {
-                // cache miss - this path isn't cached yet
+            HttpResponse rawResponse = consulUtils.execute(Get(getUrl(getResponseKey(key)))).returnResponse();
+            if (recordOutcome(consul, rawResponse)) {
+                log.warn("error fetching " + key + " from cache, " + rawResponse.getStatusLine());
+                return null;
+            }
+            ConsulResponse entry = consulUtils.readResponse(rawResponse);
+            if (entry == null) {
+                // cache miss - this key isn't cached yet
                 metrics.meter("responses.cache-miss").mark();
+                outcome = "miss";
+                return null;
+            }
+
+            // responses stored before the bodies were separated may still be split into parts themselves
+            boolean chunked = entry.getFlags() == CHUNKED;
+            byte[] value = readValue(consul, entry);
+            if (value == null) {
+                // some of the parts are missing or don't add up, as far as the caller is concerned it's a miss
+                metrics.meter("responses.cache-miss").mark();
+                outcome = "corrupt";
                 return null;
             }
 
             // before returning - validate the freshness of the value, it may be stale
-            CachedResponse cachedResponse = mapper.readValue(decoded, CachedResponse.class);
-            if (cachedResponse.getValidUntil() >= System.currentTimeMillis()) {
-                // cache hit - good to go
-                metrics.meter("responses.cache-hit").mark();
-                return cachedResponse;
-            } else {
+            CachedResponse cachedResponse = mapper.readValue(value, CachedResponse.class);
+            if (cachedResponse.getValidUntil() < System.currentTimeMillis()) {
                 // cache miss - value is stale, evict it and return nothing
                 metrics.meter("responses.cache-miss").mark();
-                evict(path);
+                outcome = "stale";
+                evict(key, chunked);
                 return null;
             }
-        } catch (IOException e) {
+
+            // responses stored before the bodies were separated have their content inline
+            if (cachedResponse.getContent() == null && cachedResponse.getBodyHash() != null) {
+                String body = fetchBody(consul, cachedResponse.getBodyHash());
+                if (body == null) {
+                    log.warn("the body of " + key + " is missing or corrupt");
+                    metrics.meter("responses.cache-miss").mark();
+                    outcome = "corrupt";
+                    return null;
+                }
+                cachedResponse.setContent(body);
+            }
+
+            // cache hit - good to go
+            metrics.meter("responses.cache-hit").mark();
+            outcome = "hit";
+            return cachedResponse;
+        } catch (IOException | RuntimeException e) {
             // if something's wrong, let's just say we don't have this value to allow for path-through to work
-            log.warn("error fetching " + path + " from cache, " + e.getMessage(), e);
+            log.warn("error fetching " + key + " from cache, " + e.getMessage(), e);
+            consul.recordFailure();
             return null;
+        } finally {
+            time("responses.consul-fetch", key, outcome, start);
+        }
+    }
+
+    /**
+     * remove the bodies no response refers to anymore, and the parts left over from responses that were split into parts
+     * before the bodies were separated. A body is only removed once it's unreferenced in two sweeps in a row, so a body
+     * that was just written, and whose response isn't written yet, is left alone
+     */
+    @Override
+    public synchronized void sweep() {
+        CircuitBreaker consul = breakers.forUrl(props.getConsulUrl());
+        if (!consul.allowRequest()) {
+            return;
+        }
+
+        try (Timer.Context ignored = metrics.timer("responses.consul-sweep").time()) {
+            String bodiesRoot = getBodyKey("");
+            HttpResponse rawBodies = consulUtils.execute(Get(getUrl(bodiesRoot) + "?keys&separator=/"))
+                    .returnResponse();
+            if (recordOutcome(consul, rawBodies)) {
+                return;
+            }
+            Set<String> bodies = new HashSet<>();
+            if (rawBodies.getStatusLine().getStatusCode() == OK.value()) {
+                // the bodies themselves and the folders of the parts of large ones
+                for (String bodyKey : mapper.readValue(rawBodies.getEntity().getContent(), String[].class)) {
+                    String bodyHash = bodyKey.substring(bodiesRoot.length());
+                    bodies.add(bodyHash.endsWith(".parts/") ?
+                            bodyHash.substring(0, bodyHash.length() - ".parts/".length()) :
+                            bodyHash);
+                }
+            }
+
+            String responsesRoot = props.getConsulKVRoot() + "/responses/";
+            HttpResponse rawResponses = consulUtils.execute(Get(getUrl(responsesRoot) + "?recurse"))
+                    .returnResponse();
+            if (recordOutcome(consul, rawResponses)) {
+                return;
+            }
+
+            Set<String> referenced = new HashSet<>();
+            Set<String> chunkedResponses = new HashSet<>();
+            Set<String> responsesWithParts = new HashSet<>();
+            for (ConsulResponse entry : consulUtils.readResponses(rawResponses)) {
+                int partsStart = entry.getKey().indexOf(".parts/");
+                if (partsStart != -1) {
+                    responsesWithParts.add(entry.getKey().substring(0, partsStart));
+                } else if (entry.getFlags() == CHUNKED) {
+                    chunkedResponses.add(entry.getKey());
+                } else {
+                    // if a response can't be read we can't tell which body it refers to, so nothing is removed
+                    String bodyHash = mapper.readValue(consulUtils.decodeBytes(entry), CachedResponse.class).getBodyHash();
+                    if (bodyHash != null) {
+                        referenced.add(bodyHash);
+                    }
+                }
+            }
+
+            // parts of responses that were overwritten since they were split, or evicted without their parts
+            responsesWithParts.removeAll(chunkedResponses);
+            for (String responseKey : responsesWithParts) {
+                consulUtils.execute(Delete(getUrl(responseKey + ".parts/") + "?recurse")).discardContent();
+                metrics.meter("responses.consul-swept-parts").mark();
+            }
+
+            bodies.removeAll(referenced);
+            for (String bodyHash : bodies) {
+                if (unreferencedBodies.contains(bodyHash)) {
+                    consulUtils.execute(Delete(getUrl(getBodyKey(bodyHash)))).discardContent();
+                    consulUtils.execute(Delete(getUrl(getBodyKey(bodyHash) + ".parts/") + "?recurse"))
+                            .discardContent();
+                    knownBodies.invalidate(bodyHash);
+                    metrics.meter("responses.consul-swept-bodies").mark();
+                }
+            }
+            bodies.removeAll(unreferencedBodies);
+            unreferencedBodies = bodies;
+
+            consul.recordSuccess();
+        } catch (IOException | RuntimeException e) {
+            log.warn("couldn't sweep the stored responses, " + e.getMessage(), e);
+            consul.recordFailure();
         }
     }
 
-    private String getStoreUrl(String path) {
-        return props.getConsulUrl().toString() + "/v1/kv/" + props.getConsulKVRoot() + path;
+    /**
+     * @return the body, or null if it's missing or can't be put together
+     */
+    private String fetchBody(CircuitBreaker consul, String bodyHash) throws IOException {
+        HttpResponse rawResponse = consulUtils.execute(Get(getUrl(getBodyKey(bodyHash)))).returnResponse();
+        if (recordOutcome(consul, rawResponse)) {
+            return null;
+        }
+
+        ConsulResponse entry = consulUtils.readResponse(rawResponse);
+        if (entry == null) {
+            // it's gone, it has to be stored again
+            knownBodies.invalidate(bodyHash);
+            return null;
+        }
+
+        byte[] body = readValue(consul, entry);
+        if (body == null) {
+            return null;
+        }
+
+        knownBodies.put(bodyHash, System.currentTimeMillis());
+        return new String(body, UTF_8);
     }
 
-    private void evict(String path) {
+    /**
+     * the sweep (on whichever node is the leader) may have removed a body since this node last saw it, so a body that
+     * wasn't confirmed within the last refresh period is looked up again. There's still a window between the lookup and
+     * the metadata write in which the body can be swept, the response then reads as a miss and its body is stored again
+     *
+     * @return true if the body can be reused without writing it
+     */
+    private boolean isBodyStored(CircuitBreaker consul, String bodyHash) throws IOException {
+        Long confirmedAt = knownBodies.getIfPresent(bodyHash);
+        if (confirmedAt == null) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - confirmedAt < MINUTES.toMillis(props.getCachedUrisRefreshMinutes())) {
+            return true;
+        }
+
+        // only the keys, the body itself may be large
+        String bodyKey = getBodyKey(bodyHash);
+        HttpResponse response = consulUtils.execute(Get(getUrl(bodyKey) + "?keys&separator=/")).returnResponse();
+        if (recordOutcome(consul, response) || response.getStatusLine().getStatusCode() != OK.value()) {
+            knownBodies.invalidate(bodyHash);
+            return false;
+        }
+
+        // the parts folder of a large body matches the prefix too, only the exact key will do
+        for (String found : mapper.readValue(response.getEntity().getContent(), String[].class)) {
+            if (found.equals(bodyKey)) {
+                knownBodies.put(bodyHash, now);
+                return true;
+            }
+        }
+
+        knownBodies.invalidate(bodyHash);
+        return false;
+    }
+
+    /**
+     * metadata only copy of the response, the content is stored separately
+     */
+    private CachedResponse metadata(CachedResponse response, String bodyHash) {
+        CachedResponse metadata = new CachedResponse();
+        metadata.setHeaders(response.getHeaders());
+        metadata.setStatusLine(response.getStatusLine());
+        metadata.setValidUntil(response.getValidUntil());
+        metadata.setCreatedAt(response.getCreatedAt());
+        metadata.setCodec(response.getCodec());
+        metadata.setBodyHash(bodyHash);
+        return metadata;
+    }
+
+    /**
+     * @return the value of the entry, reassembled from its parts if it was split, or null if it can't be put together
+     */
+    private byte[] readValue(CircuitBreaker consul, ConsulResponse entry) throws IOException {
+        return entry.getFlags() == CHUNKED ? fetchChunked(consul, entry) : consulUtils.decodeBytes(entry);
+    }
+
+    /**
+     * the parts are named after the hash of the whole value, so they're never overwritten while someone may be reading
+     * them. They're written first, in parallel, and the manifest pointing at them is written last so readers see either
+     * the previous value or the new one in full
+     */
+    private HttpResponse storeChunked(String kvKey, byte[] value) throws IOException {
+        List<byte[]> values = Chunks.split(value, props.getConsulChunkSize());
+        ChunkManifest manifest = Chunks.manifest(value, values.size());
+        metrics.histogram("responses.consul-parts").update(values.size());
+
+        List<CompletableFuture<HttpResponse>> parts = new ArrayList<>();
+        for (int i = 0; i < values.size(); i++) {
+            String partKey = getPartKey(kvKey, manifest.getSha256(), i);
+            byte[] part = values.get(i);
+            parts.add(supplyAsync(() -> {
+                try {
+                    return put(partKey, part, 0);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, consulExecutor));
+        }
+
+        for (HttpResponse part : join(parts)) {
+            if (!isStored(part)) {
+                // the manifest isn't written, so the previous value (if any) stays in place
+                return part;
+            }
+        }
+
+        return put(kvKey, mapper.writeValueAsBytes(manifest), CHUNKED);
+    }
+
+    /**
+     * @return the reassembled value, or null if it can't be put together
+     */
+    private byte[] fetchChunked(CircuitBreaker consul, ConsulResponse entry) throws IOException {
+        ChunkManifest manifest = mapper.readValue(consulUtils.decode(entry), ChunkManifest.class);
+
+        List<CompletableFuture<byte[]>> parts = new ArrayList<>();
+        for (int i = 0; i < manifest.getParts(); i++) {
+            String partUrl = getUrl(getPartKey(entry.getKey(), manifest.getSha256(), i));
+            parts.add(supplyAsync(() -> {
+                try {
+                    HttpResponse response = consulUtils.execute(Get(partUrl)).returnResponse();
+                    if (recordOutcome(consul, response)) {
+                        return null;
+                    }
+                    ConsulResponse part = consulUtils.readResponse(response);
+                    return part == null ? null : consulUtils.decodeBytes(part);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, consulExecutor));
+        }
+
+        List<byte[]> values = join(parts);
+        if (values.contains(null)) {
+            log.warn("missing part of " + entry.getKey());
+            return null;
+        }
+
+        byte[] bytes = Chunks.join(manifest, values);
+        if (bytes == null) {
+            log.warn("the parts of " + entry.getKey() + " don't match their manifest");
+            metrics.meter("responses.consul-corrupt").mark();
+            return null;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Consul answers a write it accepted with 200 and true, anything else (a value that's too large, a failed check)
+     * means nothing was written
+     */
+    private boolean isStored(HttpResponse response) throws IOException {
+        return response.getStatusLine().getStatusCode() == OK.value() && response.getEntity() != null &&
+                "true".equals(EntityUtils.toString(response.getEntity()).trim());
+    }
+
+    private HttpResponse put(String kvKey, byte[] value, int flags) throws IOException {
+        String url = getUrl(kvKey);
+        return consulUtils.execute(Put(flags == 0 ? url : url + "?flags=" + flags).bodyByteArray(value))
+                .returnResponse();
+    }
+
+    private <T> List<T> join(List<CompletableFuture<T>> futures) throws IOException {
+        List<T> results = new ArrayList<>();
         try {
-            newInstance().execute(Delete(getStoreUrl(path))).discardContent();
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+
+        return results;
+    }
+
+    private void time(String metric, CacheKey key, String outcome, long start) {
+        metrics.timer(name(metric, templates.of(key.getPath()), outcome)).update(System.nanoTime() - start, NANOSECONDS);
+    }
+
+    /**
+     * feed the Consul response to the circuit breaker
+     *
+     * @return true if the response is an error
+     */
+    private boolean recordOutcome(CircuitBreaker consul, HttpResponse response) {
+        if (response.getStatusLine().getStatusCode() >= 500) {
+            consul.recordFailure();
+            return true;
+        }
+
+        consul.recordSuccess();
+        return false;
+    }
+
+    private String getUrl(String kvKey) {
+        return props.getConsulUrl().toString() + "/v1/kv/" + kvKey;
+    }
+
+    private String getResponseKey(CacheKey key) {
+        // the keys may be long and contain characters Consul doesn't like, so they're stored under a fixed size digest
+        return props.getConsulKVRoot() + "/responses/" + key.getDigest();
+    }
+
+    private String getBodyKey(String bodyHash) {
+        return props.getConsulKVRoot() + "/bodies/" + bodyHash;
+    }
+
+    private String getPartKey(String kvKey, String sha256, int index) {
+        return kvKey + ".parts/" + sha256 + "/" + index;
+    }
+
+    private void evict(CacheKey key, boolean chunked) {
+        // only the metadata is evicted, the body may be shared with other keys
+        try {
+            consulUtils.execute(Delete(getUrl(getResponseKey(key)))).discardContent();
+            if (chunked) {
+                consulUtils.execute(Delete(getUrl(getResponseKey(key)) + ".parts/?recurse")).discardContent();
+            }
         } catch (IOException e) {
-            log.warn("couldn't evict " + path, e);
+            log.warn("couldn't evict " + key, e);
             // no consequences, the value won't be used because it's stale
         }
     }
@@ -1,15 +1,21 @@
 package ajk.ghcache.services.repositories;
 
+import ajk.ghcache.config.GHCacheProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.Data;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.fluent.Request;
+import org.apache.http.client.fluent.Response;
 import org.bouncycastle.util.encoders.Base64;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.util.List;
 
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static org.apache.http.client.fluent.Executor.newInstance;
 import static org.apache.http.client.fluent.Request.Get;
 import static org.springframework.http.HttpStatus.NOT_FOUND;
@@ -19,7 +25,28 @@ public class ConsulUtils {
     @Autowired
     private ObjectMapper mapper;
 
+    @Autowired
+    private GHCacheProperties props;
+
+    /**
+     * execute a request against Consul with the configured timeouts, so a Consul that hangs fails the call (and counts
+     * against its circuit breaker) instead of holding the calling thread
+     */
+    public Response execute(Request request) throws IOException {
+        return newInstance().execute(request
+                .connectTimeout(props.getConsulConnectTimeoutMillis())
+                .socketTimeout(props.getConsulSocketTimeoutMillis()));
+    }
+
     public String responseToJson(HttpResponse rawResponse) throws IOException {
+        ConsulResponse consulResponse = readResponse(rawResponse);
+        return consulResponse == null ? null : decode(consulResponse);
+    }
+
+    /**
+     * @return the Consul key-value entry, with its metadata, or null if the key doesn't exist
+     */
+    public ConsulResponse readResponse(HttpResponse rawResponse) throws IOException {
         // do some error validation - if the value doesn't exist in Consul - return null
         if (rawResponse.getStatusLine().getStatusCode() == NOT_FOUND.value()) {
             // cache miss - this path isn't cached yet
@@ -30,7 +57,26 @@ public class ConsulUtils {
         ConsulResponse[] consulResponse = mapper.readValue(rawResponse.getEntity().getContent(), ConsulResponse[].class);
         // we know that there is a response, we'll make sure there's a single response by evicting stale ones and
         // by locking when inserting
-        return new String(Base64.decode(consulResponse[0].getValue()));
+        return consulResponse[0];
+    }
+
+    /**
+     * @return all the Consul key-value entries of a recursive read, empty if there are none
+     */
+    public List<ConsulResponse> readResponses(HttpResponse rawResponse) throws IOException {
+        if (rawResponse.getStatusLine().getStatusCode() == NOT_FOUND.value()) {
+            return emptyList();
+        }
+
+        return asList(mapper.readValue(rawResponse.getEntity().getContent(), ConsulResponse[].class));
+    }
+
+    public String decode(ConsulResponse consulResponse) {
+        return consulResponse.getValue() == null ? "" : new String(Base64.decode(consulResponse.getValue()));
+    }
+
+    public byte[] decodeBytes(ConsulResponse consulResponse) {
+        return consulResponse.getValue() == null ? new byte[0] : Base64.decode(consulResponse.getValue());
     }
 
     @Data
@@ -52,5 +98,8 @@ public class ConsulUtils {
 
         @JsonProperty("ModifyIndex")
         private int modifyIndex;
+
+        @JsonProperty("Session")
+        private String session;
     }
 }
@@ -8,8 +8,4 @@ public interface GitHubRepoRepository {
     void store(List<GitHubRepo> repos);
 
     List<GitHubRepo> findAll();
-
-    String acquireLock();
-
-    void releaseLock(String id);
 }
@@ -1,23 +1,29 @@
 package ajk.ghcache.services.repositories;
 
+import ajk.ghcache.services.CacheKey;
 import ajk.ghcache.services.CachedResponse;
 
 public interface ResponseRepository {
     /**
-     * store the result for a path
+     * store the result for a key
      *
-     * @param path   request path
+     * @param key    request key
      * @param result result to store
      * @return the result (as-is for easier usage)
      */
-    CachedResponse store(String path, CachedResponse result);
+    CachedResponse store(CacheKey key, CachedResponse result);
 
     /**
-     * fetch a result for path, unless it's stale or doesn't exist. A stale result should be evicted from the cache
+     * fetch a result for key, unless it's stale or doesn't exist. A stale result should be evicted from the cache
      *
-     * @param path request path
+     * @param key request key
      * @return the result if it exists and it's still fresh in the cache. Freshness is determined by the validUntil
      * field of the cached result, otherwise null
      */
-    CachedResponse fetch(String path);
+    CachedResponse fetch(CacheKey key);
+
+    /**
+     * remove whatever is stored but no longer used by any result. It's meant to run periodically, on a single node
+     */
+    void sweep();
 }
@@ -0,0 +1,86 @@
+package ajk.ghcache.services.resilience;
+
+import com.codahale.metrics.Meter;
+
+import static ajk.ghcache.services.resilience.CircuitBreaker.State.closed;
+import static ajk.ghcache.services.resilience.CircuitBreaker.State.halfOpen;
+import static ajk.ghcache.services.resilience.CircuitBreaker.State.open;
+
+/**
+ * A simple closed/open/half-open circuit breaker. After failureThreshold consecutive failures the breaker opens and
+ * rejects calls for openMillis, then a single trial call is let through: if it succeeds the breaker closes, otherwise
+ * it opens again
+ */
+public class CircuitBreaker {
+    public enum State {
+        closed, open, halfOpen
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private final Meter opened;
+
+    private State state = closed;
+    private int failures;
+    private long openedAt;
+    private boolean trialInProgress;
+
+    public CircuitBreaker(int failureThreshold, long openMillis, Meter opened) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.opened = opened;
+    }
+
+    /**
+     * @return true if the call may be made, every allowed call must be followed by either recordSuccess or
+     * recordFailure
+     */
+    public synchronized boolean allowRequest() {
+        if (state == open) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+
+            state = halfOpen;
+            trialInProgress = false;
+        }
+
+        if (state == halfOpen) {
+            if (trialInProgress) {
+                // only one trial call at a time, the rest are still rejected
+                return false;
+            }
+
+            trialInProgress = true;
+        }
+
+        return true;
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        trialInProgress = false;
+        state = closed;
+    }
+
+    public synchronized void recordFailure() {
+        if (state == halfOpen || ++failures >= failureThreshold) {
+            state = open;
+            openedAt = System.currentTimeMillis();
+            failures = 0;
+            trialInProgress = false;
+            opened.mark();
+        }
+    }
+
+    /**
+     * @return true if calls are currently rejected
+     */
+    public synchronized boolean isOpen() {
+        return state == open && System.currentTimeMillis() - openedAt < openMillis;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,43 @@
+package ajk.ghcache.services.resilience;
+
+import ajk.ghcache.config.GHCacheProperties;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Holds a circuit breaker per remote host. The state of each breaker is published as a gauge: 0 - closed, 1 - open and
+ * 2 - half open
+ */
+@Component
+public class CircuitBreakers {
+    @Autowired
+    private GHCacheProperties props;
+
+    @Autowired
+    private MetricRegistry metrics;
+
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    public CircuitBreaker forUrl(URL url) {
+        String host = url.getPort() == -1 ? url.getHost() : url.getHost() + "_" + url.getPort();
+
+        return breakers.computeIfAbsent(host, key -> {
+            CircuitBreaker breaker = new CircuitBreaker(
+                    props.getCircuitBreakerFailureThreshold(),
+                    props.getCircuitBreakerOpenSeconds() * 1000L,
+                    metrics.meter(name("circuit-breaker", key, "opened")));
+
+            metrics.register(name("circuit-breaker", key, "state"), (Gauge<Integer>) () -> breaker.getState().ordinal());
+
+            return breaker;
+        });
+    }
+}
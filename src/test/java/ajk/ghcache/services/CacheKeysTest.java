@@ -0,0 +1,77 @@
+package ajk.ghcache.services;
+
+import ajk.ghcache.config.GHCacheProperties;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.function.Function;
+
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+public class CacheKeysTest {
+    private static final Function<String, String> NO_HEADERS = name -> null;
+
+    private CacheKeys keys;
+
+    @Before
+    public void setUp() {
+        GHCacheProperties props = new GHCacheProperties();
+        props.setIgnoredParams(singletonList("utm_source"));
+
+        keys = new CacheKeys();
+        setField(keys, "props", props);
+    }
+
+    @Test
+    public void controlParamsAreDropped() {
+        CacheKey key = keys.fromUri("/orgs/Netflix/repos?force=true&page=2&fields=full_name", NO_HEADERS);
+
+        assertThat(key.getQuery()).isEqualTo("page=2");
+    }
+
+    @Test
+    public void ignoredParamsAreDropped() {
+        CacheKey key = keys.fromUri("/orgs/Netflix/repos?utm_source=mail", NO_HEADERS);
+
+        assertThat(key.getQuery()).isEmpty();
+        assertThat(key).isEqualTo(CacheKey.of("/orgs/Netflix/repos"));
+    }
+
+    @Test
+    public void paramOrderDoesNotMatter() {
+        assertThat(keys.fromUri("/orgs/Netflix/repos?per_page=100&page=2", NO_HEADERS))
+                .isEqualTo(keys.fromUri("/orgs/Netflix/repos?page=2&per_page=100", NO_HEADERS));
+    }
+
+    @Test
+    public void paramEncodingDoesNotMatter() {
+        assertThat(keys.fromUri("/search/repositories?q=a%20b", NO_HEADERS))
+                .isEqualTo(keys.fromUri("/search/repositories?q=a+b", NO_HEADERS));
+    }
+
+    @Test
+    public void acceptIsNormalized() {
+        CacheKey key = keys.fromUri("/orgs/Netflix", accept(" application/vnd.github.v3+json ; q=0.9 , text/plain "));
+
+        assertThat(key.getHeaders()).containsEntry("accept", "application/vnd.github.v3+json;q=0.9,text/plain");
+        assertThat(key).isEqualTo(keys.fromUri("/orgs/Netflix", accept("application/vnd.github.v3+json;q=0.9,text/plain")));
+    }
+
+    @Test
+    public void anyAcceptIsTheSameAsNoAccept() {
+        assertThat(keys.fromUri("/orgs/Netflix", accept("*/*"))).isEqualTo(CacheKey.of("/orgs/Netflix"));
+        assertThat(keys.fromUri("/orgs/Netflix", accept("  "))).isEqualTo(CacheKey.of("/orgs/Netflix"));
+    }
+
+    @Test
+    public void differentAcceptIsADifferentKey() {
+        assertThat(keys.fromUri("/orgs/Netflix", accept("application/vnd.github.v3.raw")))
+                .isNotEqualTo(CacheKey.of("/orgs/Netflix"));
+    }
+
+    private Function<String, String> accept(String value) {
+        return name -> name.equals("Accept") ? value : null;
+    }
+}
@@ -0,0 +1,105 @@
+package ajk.ghcache.services;
+
+import ajk.ghcache.config.GHCacheProperties;
+import ajk.ghcache.config.GHCacheProperties.CachePolicy;
+import org.junit.Test;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+public class CachePoliciesTest {
+    @Test
+    public void literalBeatsSingleSegmentWildcardBeatsTrailingWildcard() {
+        CachePolicies policies = compile(asList("/orgs/**", "/orgs/*/repos", "/orgs/Netflix/repos"));
+
+        assertThat(policies.match("/orgs/Netflix/repos").getPattern()).isEqualTo("/orgs/Netflix/repos");
+        assertThat(policies.match("/orgs/Google/repos").getPattern()).isEqualTo("/orgs/*/repos");
+        assertThat(policies.match("/orgs/Google/members").getPattern()).isEqualTo("/orgs/**");
+    }
+
+    @Test
+    public void backtracksWhenTheLiteralBranchDeadEnds() {
+        CachePolicies policies = compile(asList("/repos/Netflix/ghcache", "/repos/*/*/pulls"));
+
+        // the literal branch goes all the way to ghcache and has nowhere to go from there
+        assertThat(policies.match("/repos/Netflix/ghcache/pulls").getPattern()).isEqualTo("/repos/*/*/pulls");
+        assertThat(policies.match("/repos/Netflix/ghcache").getPattern()).isEqualTo("/repos/Netflix/ghcache");
+    }
+
+    @Test
+    public void trailingWildcardMatchesZeroSegments() {
+        CachePolicies policies = compile(singletonList("/orgs/**"));
+
+        assertThat(policies.match("/orgs").getPattern()).isEqualTo("/orgs/**");
+        assertThat(policies.match("/orgs/Netflix/repos/1").getPattern()).isEqualTo("/orgs/**");
+    }
+
+    @Test
+    public void singleSegmentWildcardMatchesExactlyOneSegment() {
+        CachePolicies policies = compile(singletonList("/orgs/*"));
+
+        assertThat(policies.match("/orgs/Netflix")).isNotNull();
+        assertThat(policies.match("/orgs")).isNull();
+        assertThat(policies.match("/orgs/Netflix/repos")).isNull();
+    }
+
+    @Test
+    public void unmatchedPathsAreNotCached() {
+        CachePolicies policies = compile(asList("/orgs/Netflix", "/repos/*/*"));
+
+        assertThat(policies.match("/users/octocat")).isNull();
+        assertThat(policies.match("/")).isNull();
+    }
+
+    @Test
+    public void explicitPolicyOverridesCachedUriOfTheSamePattern() {
+        GHCacheProperties props = new GHCacheProperties();
+        props.setCacheMinutes(5);
+        props.setCachedUris(singletonList("/orgs/Netflix"));
+        CachePolicy policy = new CachePolicy();
+        policy.setPattern("/orgs/Netflix");
+        policy.setCacheMinutes(60);
+        props.setCachePolicies(singletonList(policy));
+
+        CachePolicies policies = compile(props);
+
+        assertThat(policies.match("/orgs/Netflix").getCacheMinutes()).isEqualTo(60);
+    }
+
+    @Test
+    public void policiesWithoutSettingsGetTheGlobalOnes() {
+        GHCacheProperties props = new GHCacheProperties();
+        props.setCacheMinutes(5);
+        props.setCachedUris(singletonList("/orgs/Netflix"));
+
+        CachePolicies policies = compile(props);
+
+        assertThat(policies.match("/orgs/Netflix").getCacheMinutes()).isEqualTo(5);
+    }
+
+    @Test
+    public void onlyPatternsWithoutWildcardsAreLiterals() {
+        CachePolicies policies = compile(asList("/orgs/Netflix", "/orgs/*/repos", "/repos/**"));
+
+        List<CachePolicy> literals = policies.getLiterals();
+        assertThat(literals).hasSize(1);
+        assertThat(literals.get(0).getPattern()).isEqualTo("/orgs/Netflix");
+    }
+
+    private CachePolicies compile(List<String> cachedUris) {
+        GHCacheProperties props = new GHCacheProperties();
+        props.setCachedUris(cachedUris);
+        return compile(props);
+    }
+
+    private CachePolicies compile(GHCacheProperties props) {
+        CachePolicies policies = new CachePolicies();
+        setField(policies, "props", props);
+        policies.compile();
+        return policies;
+    }
+}
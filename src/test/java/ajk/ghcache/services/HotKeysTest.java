@@ -0,0 +1,108 @@
+package ajk.ghcache.services;
+
+import ajk.ghcache.config.GHCacheProperties;
+import ajk.ghcache.services.HotKeys.HotKey;
+import org.junit.Test;
+
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+public class HotKeysTest {
+    private static final CacheKey NETFLIX = CacheKey.of("/orgs/Netflix");
+    private static final CacheKey GOOGLE = CacheKey.of("/orgs/Google");
+    private static final CacheKey APACHE = CacheKey.of("/orgs/apache");
+
+    @Test
+    public void keepsTheMostRequestedKeysHottestFirst() {
+        HotKeys hotKeys = hotKeys(2);
+
+        record(hotKeys, NETFLIX, 5);
+        record(hotKeys, GOOGLE, 3);
+        record(hotKeys, APACHE, 1);
+
+        assertThat(top(hotKeys)).containsExactly(NETFLIX, GOOGLE);
+    }
+
+    @Test
+    public void aKeyThatGetsHotterEvictsTheColdest() {
+        HotKeys hotKeys = hotKeys(2);
+
+        record(hotKeys, NETFLIX, 5);
+        record(hotKeys, GOOGLE, 3);
+        record(hotKeys, APACHE, 10);
+
+        assertThat(top(hotKeys)).containsExactly(APACHE, NETFLIX);
+    }
+
+    @Test
+    public void hitsAndMissesBothCount() {
+        HotKeys hotKeys = hotKeys(1);
+
+        hotKeys.recordHit(NETFLIX);
+        hotKeys.recordHit(NETFLIX);
+        hotKeys.recordMiss(NETFLIX);
+
+        HotKey hot = hotKeys.getTop().get(0);
+        assertThat(hot.getHits()).isEqualTo(2);
+        assertThat(hot.getMisses()).isEqualTo(1);
+        assertThat(hotKeys.estimate(NETFLIX)).isEqualTo(3);
+    }
+
+    @Test
+    public void decayHalvesTheCounts() {
+        HotKeys hotKeys = hotKeys(1);
+
+        record(hotKeys, NETFLIX, 9);
+        hotKeys.decay();
+
+        assertThat(hotKeys.estimate(NETFLIX)).isEqualTo(4);
+    }
+
+    @Test
+    public void afterDecayANewKeyOnlyHasToBeatTheHalvedCounts() {
+        HotKeys hotKeys = hotKeys(1);
+
+        record(hotKeys, NETFLIX, 8);
+        record(hotKeys, GOOGLE, 5);
+        assertThat(top(hotKeys)).containsExactly(NETFLIX);
+
+        // Netflix is down to 4 and Google to 2, three more requests make Google the hotter one
+        hotKeys.decay();
+        record(hotKeys, GOOGLE, 3);
+
+        assertThat(top(hotKeys)).containsExactly(GOOGLE);
+    }
+
+    @Test
+    public void noHotKeysWhenDisabled() {
+        HotKeys hotKeys = hotKeys(0);
+
+        record(hotKeys, NETFLIX, 5);
+
+        assertThat(hotKeys.getTop()).isEmpty();
+        assertThat(hotKeys.estimate(NETFLIX)).isEqualTo(5);
+    }
+
+    private HotKeys hotKeys(int size) {
+        GHCacheProperties props = new GHCacheProperties();
+        props.setHotKeysSize(size);
+
+        HotKeys hotKeys = new HotKeys();
+        setField(hotKeys, "props", props);
+        hotKeys.init();
+        return hotKeys;
+    }
+
+    private void record(HotKeys hotKeys, CacheKey key, int times) {
+        for (int i = 0; i < times; i++) {
+            hotKeys.recordMiss(key);
+        }
+    }
+
+    private List<CacheKey> top(HotKeys hotKeys) {
+        return hotKeys.getTop().stream().map(HotKey::getKey).collect(toList());
+    }
+}
@@ -0,0 +1,70 @@
+package ajk.ghcache.services.codecs;
+
+import ajk.ghcache.config.GHCacheProperties;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+public class CodecsTest {
+    private static final byte[] CONTENT = "[{\"full_name\":\"Netflix/ghcache\"}]".getBytes(UTF_8);
+
+    @Test
+    public void responsesWithoutACodecNameAreGzipped() throws Exception {
+        Codecs codecs = codecs("gzip");
+
+        Codec legacy = codecs.forName(null);
+
+        assertThat(legacy.getName()).isEqualTo("gzip");
+        // what the service stored before the codec name was recorded
+        assertThat(legacy.decode(gzip(CONTENT))).isEqualTo(CONTENT);
+    }
+
+    @Test
+    public void codecsAreFoundByName() {
+        Codecs codecs = codecs("gzip");
+
+        assertThat(codecs.forName("gzip").getName()).isEqualTo("gzip");
+        assertThat(codecs.forName("lz4")).isNull();
+    }
+
+    @Test
+    public void newResponsesUseTheConfiguredCodec() throws Exception {
+        Codec codec = codecs("gzip").getDefault();
+
+        assertThat(codec.getName()).isEqualTo("gzip");
+        assertThat(codec.decode(codec.encode(CONTENT))).isEqualTo(CONTENT);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unknownConfiguredCodecFailsTheStartup() {
+        codecs("snappy");
+    }
+
+    private Codecs codecs(String configured) {
+        GHCacheProperties props = new GHCacheProperties();
+        props.setCodec(configured);
+
+        GzipCodec gzip = new GzipCodec();
+        setField(gzip, "props", props);
+
+        Codecs codecs = new Codecs();
+        setField(codecs, "props", props);
+        setField(codecs, "codecs", singletonList(gzip));
+        codecs.init();
+        return codecs;
+    }
+
+    private byte[] gzip(byte[] content) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+}
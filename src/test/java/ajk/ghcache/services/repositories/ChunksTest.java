@@ -0,0 +1,81 @@
+package ajk.ghcache.services.repositories;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.google.common.hash.Hashing.sha256;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ChunksTest {
+    private static final byte[] VALUE = "[{\"full_name\":\"Netflix/ghcache\"}]".getBytes(UTF_8);
+
+    @Test
+    public void splitsIntoChunkSizedPartsWithAShorterLastOne() {
+        List<byte[]> parts = Chunks.split(new byte[10], 4);
+
+        assertThat(parts).hasSize(3);
+        assertThat(parts.get(0)).hasSize(4);
+        assertThat(parts.get(1)).hasSize(4);
+        assertThat(parts.get(2)).hasSize(2);
+    }
+
+    @Test
+    public void aValueThatDividesEvenlyHasNoEmptyPart() {
+        assertThat(Chunks.split(new byte[8], 4)).hasSize(2);
+    }
+
+    @Test
+    public void manifestDescribesTheWholeValue() {
+        ChunkManifest manifest = Chunks.manifest(VALUE, 3);
+
+        assertThat(manifest.getSize()).isEqualTo(VALUE.length);
+        assertThat(manifest.getParts()).isEqualTo(3);
+        assertThat(manifest.getSha256()).isEqualTo(sha256().hashBytes(VALUE).toString());
+    }
+
+    @Test
+    public void roundTrip() {
+        List<byte[]> parts = Chunks.split(VALUE, 7);
+
+        assertThat(Chunks.join(Chunks.manifest(VALUE, parts.size()), parts)).isEqualTo(VALUE);
+    }
+
+    @Test
+    public void missingPartIsRejected() {
+        List<byte[]> parts = Chunks.split(VALUE, 7);
+        ChunkManifest manifest = Chunks.manifest(VALUE, parts.size());
+        parts.set(1, null);
+
+        assertThat(Chunks.join(manifest, parts)).isNull();
+    }
+
+    @Test
+    public void wrongNumberOfPartsIsRejected() {
+        List<byte[]> parts = Chunks.split(VALUE, 7);
+        ChunkManifest manifest = Chunks.manifest(VALUE, parts.size() + 1);
+
+        assertThat(Chunks.join(manifest, parts)).isNull();
+    }
+
+    @Test
+    public void sizeMismatchIsRejected() {
+        List<byte[]> parts = Chunks.split(VALUE, 7);
+        ChunkManifest manifest = Chunks.manifest(VALUE, parts.size());
+        byte[] last = parts.get(parts.size() - 1);
+        parts.set(parts.size() - 1, new byte[last.length - 1]);
+
+        assertThat(Chunks.join(manifest, parts)).isNull();
+    }
+
+    @Test
+    public void shaMismatchIsRejected() {
+        List<byte[]> parts = Chunks.split(VALUE, 7);
+        ChunkManifest manifest = Chunks.manifest(VALUE, parts.size());
+        // same size, different content - a part of another version of the value
+        parts.get(0)[0] ^= 1;
+
+        assertThat(Chunks.join(manifest, parts)).isNull();
+    }
+}